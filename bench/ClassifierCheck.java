@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ClassifierCheck {
+    private static final int ROWS = 5000;
+
+    private final List<String> failures = new ArrayList<>();
+
+    private void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+
+    /**
+     * Trains a tree of every version and L on synthetic images, and checks that small enough trees are
+     * compiled to a hidden class (see TreeCompiler), which predicts exactly what the FlatTree does,
+     * from both answers arrays and LazyAnswers
+     */
+    private void checkTrees(int[] Ls) {
+        SyntheticImages images = new SyntheticImages(0);
+        int[][] raw = images.matrix(ROWS);
+        int[] allIndexes = new int[ROWS];
+        for(int i=0; i<ROWS; i++) {
+            allIndexes[i] = i;
+        }
+
+        for (int version : new int[] {1, 2}) {
+            int[][] answers = version == 1
+                    ? Questions.convertToAnswersMatrixVer1(images.matrix(ROWS))
+                    : Questions.convertToAnswersMatrixVer2(images.matrix(ROWS), Questions.BEST_CONFIG);
+            byte[][] byteAnswers = Questions.convertToByteAnswersMatrix(images.matrix(ROWS), version, Questions.BEST_CONFIG);
+
+            for (int L : Ls) {
+                String name = "version " + version + ", L=" + L;
+                DecisionTree tree = TreeMaker.runAlgorithm(new DecisionTree(byteAnswers, allIndexes), L, version,
+                        version == 1 ? null : Questions.BEST_CONFIG, true).get(0);
+                FlatTree flatTree = tree.getFlatTree();
+                TreeClassifier classifier = tree.getClassifier();
+
+                if (classifier == flatTree) {
+                    System.out.println(name + ": too big to compile, uses the FlatTree");
+                    continue;
+                }
+                check(classifier.getClass().isHidden(), name + ": the compiled classifier isn't a hidden class");
+
+                LazyAnswers lazyAnswers = new LazyAnswers(version, Questions.BEST_CONFIG);
+                int mismatches = 0;
+                int lazyMismatches = 0;
+                for(int im=0; im<ROWS; im++) {
+                    int expected = flatTree.predict(answers[im]);
+                    if (classifier.predict(answers[im]) != expected) {
+                        mismatches++;
+                    }
+                    lazyAnswers.setImage(raw[im]);
+                    if (classifier.predict(lazyAnswers) != expected) {
+                        lazyMismatches++;
+                    }
+                }
+                check(mismatches == 0, name + ": " + mismatches + " predictions differ from the FlatTree's");
+                check(lazyMismatches == 0, name + ": " + lazyMismatches + " lazy predictions differ from the FlatTree's");
+                System.out.println(name + ": compiled, checked " + ROWS + " predictions");
+            }
+        }
+    }
+
+    /**
+     * Saves and loads a valid model that is a single chain of the given number of nodes - deeper than
+     * any recursion could go - and checks that it loads and predicts. Then makes the chain a cycle,
+     * and checks that loading rejects it
+     */
+    private void checkDeepModel(int nodes) throws IOException {
+        String name = "a chain of " + nodes + " nodes";
+        int[] questions = new int[nodes];
+        int[] left = new int[nodes];
+        int[] right = new int[nodes];
+        for(int node=0; node<nodes; node++) {
+            questions[node] = 1 + node % 784;
+            left[node] = -1;  // leaf 0, predicts 3
+            right[node] = node + 1 < nodes ? node + 1 : -2;  // the last node's right is leaf 1, predicts 7
+        }
+        int[] leafDigits = {3, 7};
+
+        Path file = Files.createTempFile("deep", ".model");
+        try {
+            ModelFile.write(new DecisionTree(new FlatTree(questions, left, right, leafDigits, 0), nodes, 1, null),
+                    file.toString());
+            DecisionTree tree = ModelFile.read(file.toString());
+            TreeClassifier classifier = tree.getClassifier();
+            check(classifier == tree.getFlatTree(), name + ": was compiled, though it's too big");
+
+            int[] answers = new int[785];
+            check(classifier.predict(answers) == 3, name + ": predicted wrong from all no answers");
+            Arrays.fill(answers, 1);
+            check(classifier.predict(answers) == 7, name + ": predicted wrong from all yes answers");
+            System.out.println(name + ": loaded and predicted");
+
+            right[nodes - 1] = 0;
+            ModelFile.write(new DecisionTree(new FlatTree(questions, left, right, leafDigits, 0), nodes, 1, null),
+                    file.toString());
+            try {
+                ModelFile.read(file.toString());
+                check(false, name + ": a cycle was loaded");
+            } catch (ModelFile.FormatException e) {
+                System.out.println(name + " with a cycle: rejected (" + e.getMessage() + ")");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ClassifierCheck check = new ClassifierCheck();
+        check.checkTrees(new int[] {0, 1, 4, 8, 9, 11});
+        check.checkDeepModel(200000);
+
+        for (String failure : check.failures) {
+            System.err.println("FAILED: " + failure);
+        }
+        System.exit(check.failures.isEmpty() ? 0 : 1);
+    }
+}
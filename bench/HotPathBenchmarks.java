@@ -0,0 +1,376 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+public class HotPathBenchmarks {
+    private static volatile long sink;  // results are added here, so the JIT can't drop the benchmarked code
+    private static final String FORK_ARG = "--fork";
+    private static final String RESULT_PREFIX = "RAW,";
+
+    /**
+     * The two-sided 99.9% quantiles of Student's t distribution (t(0.9995, df)) for df = 1..30,
+     * which JMH's scoreError is a multiple of
+     */
+    private static final double[] T_999 = {
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+    private static final double Z_999 = 3.2905;  // the normal distribution's quantile, which t approaches
+
+    private int forks = 1;
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 500;
+    private int[] sizes = {1000, 10000};
+    private int[] Ls = {4, 8};
+    private Pattern filter = Pattern.compile(".*");
+    private String jsonFile = null;
+
+    private static class Case {
+        final String name;
+        final Map<String, Object> params;
+        final LongSupplier invocation;
+
+        Case(String name, Map<String, Object> params, LongSupplier invocation) {
+            this.name = name;
+            this.params = params;
+            this.invocation = invocation;
+        }
+
+        String fullName() {
+            return name + params;
+        }
+    }
+
+    private static class Result {
+        final Case benchmark;
+        final double score;  // average ms per invocation, over the iterations of all the forks
+        final double error;  // half the width of the score's 99.9% confidence interval, as JMH's scoreError
+        final double[][] rawData;  // the iteration scores of every fork
+
+        Result(Case benchmark, double[][] forkScores) {
+            this.benchmark = benchmark;
+            rawData = forkScores;
+            double[] scores = Arrays.stream(forkScores).flatMapToDouble(Arrays::stream).toArray();
+            score = Arrays.stream(scores).average().orElse(0);
+            if (scores.length < 2) {
+                error = Double.NaN;
+            } else {
+                double variance = Arrays.stream(scores).map(s -> (s - score) * (s - score)).sum() / (scores.length - 1);
+                error = getT999(scores.length - 1) * Math.sqrt(variance / scores.length);
+            }
+        }
+    }
+
+    /**
+     * Returns t(0.9995, df) - from the table, or beyond it from the Cornish-Fisher expansion around the normal
+     * quantile (which is within 0.01% of the exact value there)
+     */
+    private static double getT999(int df) {
+        if (df <= T_999.length) {
+            return T_999[df - 1];
+        }
+        double z = Z_999;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        double z7 = z5 * z * z;
+        return z + (z3 + z) / (4.0 * df) + (5 * z5 + 16 * z3 + 3 * z) / (96.0 * df * df)
+                + (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / (384.0 * df * df * df);
+    }
+
+    /**
+     * A value that is made on first use, so a forked JVM only makes the datasets of the benchmark it runs
+     */
+    private static class Lazy<T> implements Supplier<T> {
+        private final Supplier<T> maker;
+        private T value;
+
+        Lazy(Supplier<T> maker) {
+            this.maker = maker;
+        }
+
+        @Override
+        public T get() {
+            if (value == null) {
+                value = maker.get();
+            }
+            return value;
+        }
+    }
+
+    private static <T> Lazy<T> lazy(Supplier<T> maker) {
+        return new Lazy<>(maker);
+    }
+
+    private interface IOInvocation {
+        long invoke() throws IOException;
+    }
+
+    private static LongSupplier unchecked(IOInvocation invocation) {
+        return () -> {
+            try {
+                return invocation.invoke();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static Map<String, Object> params(Object... keysAndValues) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        for(int i=0; i<keysAndValues.length; i+=2) {
+            params.put((String) keysAndValues[i], keysAndValues[i+1]);
+        }
+        return params;
+    }
+
+    private static int[] allIndexes(int rows) {
+        int[] indexes = new int[rows];
+        for(int i=0; i<rows; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    /**
+     * Makes the benchmarks of the hot paths, for every dataset size (and L) - the ones learntree and predict run.
+     * The datasets are synthetic (see SyntheticImages) and always the same, so results can be compared between runs.
+     * They're made lazily, by the forked JVM of the benchmark that uses them
+     */
+    private List<Case> makeCases() {
+        List<Case> cases = new ArrayList<>();
+        SyntheticImages images = new SyntheticImages(0);
+
+        for (int rows : sizes) {
+            Lazy<File> csv = lazy(() -> {
+                try {
+                    File file = File.createTempFile("bench", ".csv");
+                    file.deleteOnExit();
+                    images.writeCsv(file.getPath(), 0, rows);
+                    return file;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Lazy<byte[][]> ver2Bytes = lazy(() ->
+                    Questions.convertToByteAnswersMatrix(images.matrix(rows), 2, Questions.BEST_CONFIG));
+
+            for (int version : new int[] {1, 2}) {
+                cases.add(new Case("Questions.readByteAnswersMatrix", params("rows", rows, "version", version),
+                        unchecked(() -> {
+                            try (BufferedReader reader = new BufferedReader(new FileReader(csv.get()))) {
+                                return Questions.readByteAnswersMatrix(reader, version, Questions.BEST_CONFIG).length;
+                            }
+                        })));
+            }
+
+            for (int version : new int[] {1, 2}) {
+                Lazy<LeafNode> root = lazy(() -> (LeafNode) new DecisionTree(
+                        Questions.convertToByteAnswersMatrix(images.matrix(rows), version, Questions.BEST_CONFIG),
+                        allIndexes(rows)).getRoot());
+                cases.add(new Case("LeafNode.getBestIG", params("rows", rows, "version", version),
+                        () -> root.get().getBestIG().getQuestion()));
+            }
+
+            for (int L : Ls) {
+                cases.add(new Case("TreeMaker.runAlgorithm", params("rows", rows, "L", L),
+                        () -> TreeMaker.runAlgorithm(new DecisionTree(ver2Bytes.get(), allIndexes(rows)), L, 2,
+                                Questions.BEST_CONFIG, true).get(0).getT()));
+            }
+
+            // predict's path: the rows are parsed, and answered lazily by the tree's classifier
+            Lazy<DecisionTree> tree = lazy(() -> TreeMaker.runAlgorithm(
+                    new DecisionTree(ver2Bytes.get(), allIndexes(rows)), 6, 2, Questions.BEST_CONFIG, true).get(0));
+            cases.add(new Case("TreePredictor.runStreamingPrediction", params("rows", rows),
+                    unchecked(() -> {
+                        try (BufferedReader reader = new BufferedReader(new FileReader(csv.get()))) {
+                            return TreePredictor.runStreamingPrediction(tree.get(), reader, Writer.nullWriter());
+                        }
+                    })));
+        }
+
+        return cases;
+    }
+
+    /**
+     * Runs a single iteration: invocations until iterationMillis of them were timed
+     * @return the average ms per invocation
+     */
+    private double runIteration(Case benchmark) {
+        long timed = 0;
+        long invocations = 0;
+        long budget = iterationMillis * 1000000;
+        while (timed < budget) {
+            long start = System.nanoTime();
+            sink += benchmark.invocation.getAsLong();
+            timed += System.nanoTime() - start;
+            invocations++;
+        }
+        return timed / 1e6 / invocations;
+    }
+
+    /**
+     * Runs the warmup and measured iterations of the benchmark in this JVM
+     * @return the scores of the measured iterations
+     */
+    private double[] runIterations(Case benchmark) {
+        for(int i=0; i<warmupIterations; i++) {
+            runIteration(benchmark);
+        }
+        double[] scores = new double[iterations];
+        for(int i=0; i<iterations; i++) {
+            scores[i] = runIteration(benchmark);
+        }
+        return scores;
+    }
+
+    /**
+     * Runs the benchmark in a fresh JVM, with the same JVM options and settings, so the JIT's profile of
+     * the benchmarks that ran before it can't affect it (as JMH forks)
+     * @return the scores of the measured iterations, or null if the fork failed
+     */
+    private static double[] runFork(Case benchmark, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HotPathBenchmarks.class.getName());
+        command.add(FORK_ARG);
+        command.add(benchmark.fullName());
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        double[] scores = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    scores = Arrays.stream(line.substring(RESULT_PREFIX.length()).split(","))
+                            .mapToDouble(Double::parseDouble).toArray();
+                }
+            }
+        }
+        return process.waitFor() == 0 ? scores : null;
+    }
+
+    private Result run(Case benchmark, String[] args) throws IOException, InterruptedException {
+        double[][] forkScores = new double[forks][];
+        for(int f=0; f<forks; f++) {
+            forkScores[f] = runFork(benchmark, args);
+            if (forkScores[f] == null) {
+                return null;
+            }
+        }
+        return new Result(benchmark, forkScores);
+    }
+
+    /**
+     * Runs the benchmark of the given full name in this JVM (as a fork), and prints its scores
+     */
+    private void runForked(String fullName) {
+        for (Case benchmark : makeCases()) {
+            if (benchmark.fullName().equals(fullName)) {
+                double[] scores = runIterations(benchmark);
+                System.out.println(RESULT_PREFIX + Arrays.stream(scores).mapToObj(Double::toString)
+                        .collect(Collectors.joining(",")));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No benchmark " + fullName);
+    }
+
+    /**
+     * Writes the results in (a subset of) JMH's json format, so the usual tools can compare runs
+     * (like JMH, the raw data has a list of iteration scores for every fork)
+     */
+    private static void writeJson(List<Result> results, String file_path) throws IOException {
+        try (Writer out = new FileWriter(file_path)) {
+            out.write("[\n");
+            for(int r=0; r<results.size(); r++) {
+                Result result = results.get(r);
+                out.write("  {\"benchmark\": \"" + result.benchmark.name + "\", \"mode\": \"avgt\", \"params\": {");
+                int p = 0;
+                for (Map.Entry<String, Object> param : result.benchmark.params.entrySet()) {
+                    out.write((p++ == 0 ? "" : ", ") + "\"" + param.getKey() + "\": \"" + param.getValue() + "\"");
+                }
+                String rawData = Arrays.stream(result.rawData).map(Arrays::toString).collect(Collectors.joining(", "));
+                out.write("}, \"primaryMetric\": {\"score\": " + result.score
+                        + ", \"scoreError\": " + (Double.isNaN(result.error) ? "\"NaN\"" : result.error)
+                        + ", \"scoreUnit\": \"ms/op\", \"rawData\": [" + rawData + "]}}");
+                out.write(r < results.size() - 1 ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        }
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private void parseArgs(String[] args) {
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "-f": forks = Integer.parseInt(args[++i]); break;
+                case "-wi": warmupIterations = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-t": iterationMillis = Long.parseLong(args[++i]); break;
+                case "-sizes": sizes = parseInts(args[++i]); break;
+                case "-L": Ls = parseInts(args[++i]); break;
+                case "-json": jsonFile = args[++i]; break;
+                default: filter = Pattern.compile(args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs every benchmark that matches the regex in its own forked JVM(s), and prints its score
+     * with the 99.9% confidence interval
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        HotPathBenchmarks benchmarks = new HotPathBenchmarks();
+        boolean isFork = args.length >= 2 && args[0].equals(FORK_ARG);
+        String[] settings = isFork ? Arrays.copyOfRange(args, 2, args.length) : args;
+        try {
+            benchmarks.parseArgs(settings);
+        } catch (RuntimeException e) {
+            System.err.println("Usage: HotPathBenchmarks [-f <forks>] [-wi <warmup_iterations>] [-i <iterations>]"
+                    + " [-t <iteration_ms>] [-sizes <rows,...>] [-L <L,...>] [-json <output_filename>] [benchmark_regex]");
+            System.exit(1);
+        }
+        if (isFork) {
+            benchmarks.runForked(args[1]);
+            return;
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Case benchmark : benchmarks.makeCases()) {
+            if (!benchmarks.filter.matcher(benchmark.fullName()).find()) {
+                continue;
+            }
+            Result result = benchmarks.run(benchmark, args);
+            if (result == null) {
+                System.out.printf("%-70s failed%n", benchmark.fullName());
+                continue;
+            }
+            results.add(result);
+            System.out.printf(Locale.ROOT, "%-70s %12.4f +- %10.4f ms/op%n", benchmark.fullName(), result.score,
+                    result.error);
+        }
+
+        if (benchmarks.jsonFile != null) {
+            writeJson(results, benchmarks.jsonFile);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class MacroBenchmark {
+    private static final String HEADER = "rows,version,L,threads,train_ms,train_rows_per_second,"
+            + "predict_ms,predict_rows_per_second,accuracy,peak_heap_mb,gc_ms,gc_count";
+    private static final String RESULT_PREFIX = "RESULT,";
+
+    private long[] rowCounts = {10000, 100000};
+    private int[] versions = {1, 2};
+    private int[] Ls = {4, 8};
+    private int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+    private String heap = null;
+    private long seed = 0;
+    private Path workDir = Paths.get(System.getProperty("java.io.tmpdir"), "digits-macro-benchmark");
+    private String outputFile = null;
+
+    /**
+     * Returns the training and test set files for the given size, generating them if they don't exist yet.
+     * The test set is a fifth of the size, and is made of the images right after the training set's,
+     * so it's a holdout of the same distribution
+     */
+    private Path[] getDataset(long rows) throws IOException {
+        Path train = workDir.resolve("train-" + seed + "-" + rows + ".csv");
+        Path test = workDir.resolve("test-" + seed + "-" + rows + ".csv");
+        SyntheticImages images = new SyntheticImages(seed);
+        if (!Files.exists(train)) {
+            generate(images, train, 0, rows);
+        }
+        if (!Files.exists(test)) {
+            generate(images, test, rows, Math.max(1, rows / 5));
+        }
+        return new Path[] {train, test};
+    }
+
+    /**
+     * Writes the images to a temporary file, which is renamed to the given file only once it's complete,
+     * so an interrupted run never leaves a half-written dataset that the next run would use
+     */
+    private void generate(SyntheticImages images, Path file, long firstIndex, long rows) throws IOException {
+        System.err.println("Generating " + file);
+        Path partial = Files.createTempFile(workDir, file.getFileName().toString(), ".partial");
+        try {
+            images.writeCsv(partial.toString(), firstIndex, rows);
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Runs a single point of the sweep in a fresh JVM, so its peak heap and GC counters are its own
+     * @return the result csv line
+     */
+    private String runPoint(Path train, Path test, long rows, int version, int L, int threadCount)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (heap != null) {
+            command.add("-Xmx" + heap);
+        }
+        command.add("-XX:ActiveProcessorCount=" + threadCount);
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + threadCount);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MacroBenchmark.class.getName());
+        command.addAll(Arrays.asList("--point", train.toString(), test.toString(),
+                String.valueOf(rows), String.valueOf(version), String.valueOf(L), String.valueOf(threadCount)));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String result = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                }
+            }
+        }
+
+        if (process.waitFor() != 0 || result == null) {
+            // e.g. an OutOfMemoryError - which is a result too, when sizing hardware
+            return rows + "," + version + "," + L + "," + threadCount + ",failed,,,,,,,";
+        }
+        return result;
+    }
+
+    private static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long[] getGcTimeAndCount() {
+        long time = 0;
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return new long[] {time, count};
+    }
+
+    /**
+     * Runs a single point in this JVM: training the way learntree does (reading the csv straight into answers,
+     * then TreeMaker.makeTreeFromAnswers),
+     * then the parallel streaming prediction path (Evaluation.evaluate) on the test set,
+     * and prints the result line
+     */
+    private static void point(String[] args) throws IOException {
+        String train = args[1];
+        String test = args[2];
+        long rows = Long.parseLong(args[3]);
+        int version = Integer.parseInt(args[4]);
+        int L = Integer.parseInt(args[5]);
+        int threadCount = Integer.parseInt(args[6]);
+
+        long start = System.nanoTime();
+        byte[][] answers_matrix;
+        try (BufferedReader reader = new BufferedReader(new FileReader(train))) {
+            answers_matrix = Questions.readByteAnswersMatrix(reader, version, Questions.BEST_CONFIG);
+        }
+        DecisionTree tree = TreeMaker.makeTreeFromAnswers(version, 0.2, L, answers_matrix, Questions.BEST_CONFIG);
+        answers_matrix = null;
+        double trainMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        Evaluation evaluation;
+        try (BufferedReader reader = new BufferedReader(new FileReader(test))) {
+            evaluation = Evaluation.evaluate(tree, reader);
+        }
+        double predictMillis = (System.nanoTime() - start) / 1e6;
+
+        long[] gc = getGcTimeAndCount();
+        System.out.printf(Locale.ROOT, "%s%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.4f,%.1f,%d,%d%n", RESULT_PREFIX,
+                rows, version, L, threadCount,
+                trainMillis, rows / (trainMillis / 1000),
+                predictMillis, evaluation.getTotal() / (predictMillis / 1000),
+                evaluation.getAccuracy(), getPeakHeapBytes() / (double) (1 << 20), gc[0], gc[1]);
+    }
+
+    private static long[] parseLongs(String list) {
+        return Arrays.stream(list.split(",")).mapToLong(Long::parseLong).toArray();
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private void parseArgs(String[] args) {
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "-rows": rowCounts = parseLongs(args[++i]); break;
+                case "-versions": versions = parseInts(args[++i]); break;
+                case "-L": Ls = parseInts(args[++i]); break;
+                case "-threads": threads = parseInts(args[++i]); break;
+                case "-heap": heap = args[++i]; break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-dir": workDir = Paths.get(args[++i]); break;
+                case "-out": outputFile = args[++i]; break;
+                default: throw new IllegalArgumentException(args[i]);
+            }
+        }
+    }
+
+    /**
+     * Sweeps the cartesian product of the row counts, versions, L values and thread counts,
+     * and writes a csv line for every point, so the scaling curves can be plotted from it
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--point")) {
+            point(args);
+            return;
+        }
+
+        MacroBenchmark benchmark = new MacroBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch (RuntimeException e) {
+            System.err.println("Usage: MacroBenchmark [-rows <rows,...>] [-versions <1,2>] [-L <L,...>]"
+                    + " [-threads <threads,...>] [-heap <max_heap e.g. 8g>] [-seed <seed>] [-dir <work_dir>]"
+                    + " [-out <output_csv>]");
+            System.exit(1);
+        }
+        Files.createDirectories(benchmark.workDir);
+
+        PrintStream out = benchmark.outputFile == null ? System.out : new PrintStream(benchmark.outputFile);
+        out.println(HEADER);
+        for (long rows : benchmark.rowCounts) {
+            Path[] dataset = benchmark.getDataset(rows);
+            for (int version : benchmark.versions) {
+                for (int L : benchmark.Ls) {
+                    for (int threadCount : benchmark.threads) {
+                        String result = benchmark.runPoint(dataset[0], dataset[1], rows, version, L, threadCount);
+                        out.println(result);
+                        out.flush();
+                        if (benchmark.outputFile != null) {
+                            System.err.println(result);
+                        }
+                    }
+                }
+            }
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+public class ServerCheck {
+    private static final int ROWS = 2000;
+    private static final int CLIENTS = 4;
+    private static final int L = 6;
+
+    private final List<String> failures = new ArrayList<>();
+    private final SyntheticImages images = new SyntheticImages(0);
+
+    private synchronized void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+
+    private DecisionTree train(int version) {
+        byte[][] answers = Questions.convertToByteAnswersMatrix(images.matrix(ROWS), version, Questions.BEST_CONFIG);
+        int[] allIndexes = new int[ROWS];
+        for(int i=0; i<ROWS; i++) {
+            allIndexes[i] = i;
+        }
+        return TreeMaker.runAlgorithm(new DecisionTree(answers, allIndexes), L, version,
+                version == 1 ? null : Questions.BEST_CONFIG, true).get(0);
+    }
+
+    /**
+     * The predictions the server should answer: the FlatTree's, on the converted answers
+     */
+    private int[] expectedPredictions(DecisionTree tree) {
+        int[][] raw = images.matrix(ROWS);
+        int[][] answers = tree.getVersion() == 1
+                ? Questions.convertToAnswersMatrixVer1(raw)
+                : Questions.convertToAnswersMatrixVer2(raw, Questions.BEST_CONFIG);
+        int[] expected = new int[ROWS];
+        for(int im=0; im<ROWS; im++) {
+            expected[im] = tree.getFlatTree().predict(answers[im]);
+        }
+        return expected;
+    }
+
+    private static String toCsv(int[] row, int from) {
+        return Arrays.stream(row, from, row.length).mapToObj(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    /**
+     * A client connection, which sends a line and waits for its response
+     */
+    private static class Client implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        }
+
+        String send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends all the images from CLIENTS concurrent connections - every other one with its label,
+     * and the rest as just the pixels - and checks every response against the expected prediction
+     * @param prefix - prepended to every request (the model name, when serving a registry)
+     */
+    private void checkPredictions(String name, int port, String prefix, int[] expected) throws Exception {
+        int[][] raw = images.matrix(ROWS);
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<Integer>> mismatches = new ArrayList<>();
+        for(int c=0; c<CLIENTS; c++) {
+            int first = c;
+            mismatches.add(clients.submit(() -> {
+                int count = 0;
+                try (Client client = new Client(port)) {
+                    for(int im=first; im<ROWS; im+=CLIENTS) {
+                        String response = client.send(prefix + toCsv(raw[im], im % 2));
+                        if (!response.equals(String.valueOf(expected[im]))) {
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            }));
+        }
+        clients.shutdown();
+
+        int total = 0;
+        for (Future<Integer> clientMismatches : mismatches) {
+            total += clientMismatches.get();
+        }
+        check(total == 0, name + ": " + total + " responses differ from the FlatTree's predictions");
+        System.out.println(name + ": checked " + ROWS + " predictions from " + CLIENTS + " clients");
+    }
+
+    /**
+     * Checks that rows that don't fit the model are rejected, and that the server still answers afterwards
+     */
+    private void checkBadRows(String name, int port, String prefix, int expectedFirst) throws IOException {
+        int[] image = images.image(0);
+        try (Client client = new Client(port)) {
+            String tooLong = prefix + toCsv(image, 0) + ",0,0,0,0,0,0,0,0,0,0,0,0,0,0,0";
+            check(client.send(tooLong).startsWith("ERROR"), name + ": a row of " + (image.length + 15) + " columns was scored");
+            check(client.send(prefix + "1,2,x").startsWith("ERROR"), name + ": a non numeric row was scored");
+            check(client.send(prefix + toCsv(image, 0)).equals(String.valueOf(expectedFirst)),
+                    name + ": a good row after the bad ones was answered wrong");
+
+            String stats = client.send("STATS");
+            check(stats.matches("served=\\d+ throughput=\\d+\\.\\d/s p50=\\d+us p99=\\d+us"),
+                    name + ": bad stats line " + stats);
+        }
+        System.out.println(name + ": checked bad rows and stats");
+    }
+
+    private void checkServer(int version) throws Exception {
+        String name = "version " + version + " server";
+        DecisionTree tree = train(version);
+        int[] expected = expectedPredictions(tree);
+
+        PredictServer server = new PredictServer(tree, 256, 500);
+        int port = server.start(0);
+        try {
+            checkPredictions(name, port, "", expected);
+            checkBadRows(name, port, "", expected[0]);
+        } finally {
+            server.close();
+        }
+    }
+
+    private void checkRegistryServer() throws Exception {
+        String name = "registry server";
+        DecisionTree tree = train(2);
+        int[] expected = expectedPredictions(tree);
+
+        Path dir = Files.createTempDirectory("models");
+        Path model = dir.resolve("digits");
+        ModelFile.write(tree, model.toString());
+        PredictServer server = new PredictServer(new ModelRegistry(dir.toString(), 4, 1 << 20), 256, 500);
+        int port = server.start(0);
+        try {
+            checkPredictions(name, port, "digits:", expected);
+            checkBadRows(name, port, "digits:", expected[0]);
+            try (Client client = new Client(port)) {
+                check(client.send("missing:" + toCsv(images.image(0), 1)).startsWith("ERROR"),
+                        name + ": a missing model was answered");
+                check(client.send(toCsv(images.image(0), 1)).startsWith("ERROR"),
+                        name + ": a request without a model name was answered");
+            }
+        } finally {
+            server.close();
+            Files.delete(model);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Starts prediction servers on a free localhost port, and checks them over real connections.
+     * It runs in a locale with decimal commas, so the stats line is checked to be locale independent
+     */
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.GERMANY);
+        ServerCheck check = new ServerCheck();
+        check.checkServer(1);
+        check.checkServer(2);
+        check.checkRegistryServer();
+
+        for (String failure : check.failures) {
+            System.err.println("FAILED: " + failure);
+        }
+        System.exit(check.failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+public class SyntheticImages {
+    private static final int DIM = 28;
+    private static final int STROKES = 5;
+
+    private final long seed;
+    private final int[][][] strokes;  // strokes[digit][stroke] = {r0, c0, r1, c1}
+
+    /**
+     * A deterministic generator of synthetic mnist shaped images: every digit has its own few random
+     * strokes, and every image is its digit's strokes, shifted a bit, with some noise.
+     * The same seed always generates the same images, so runs can be compared.
+     */
+    public SyntheticImages(long seed) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        strokes = new int[10][STROKES][];
+        for(int d=0; d<10; d++) {
+            for(int s=0; s<STROKES; s++) {
+                strokes[d][s] = new int[] {
+                        4 + random.nextInt(DIM - 8), 4 + random.nextInt(DIM - 8),
+                        4 + random.nextInt(DIM - 8), 4 + random.nextInt(DIM - 8)
+                };
+            }
+        }
+    }
+
+    /**
+     * Returns the image with the given index, in the csv format (label at index 0, then the pixels)
+     */
+    public int[] image(long index) {
+        Random random = new Random(seed * 31 + index);
+        int digit = random.nextInt(10);
+        int shiftRow = random.nextInt(5) - 2;
+        int shiftCol = random.nextInt(5) - 2;
+
+        int[] image = new int[1 + DIM * DIM];
+        image[0] = digit;
+        for (int[] stroke : strokes[digit]) {
+            int steps = Math.max(Math.abs(stroke[2] - stroke[0]), Math.abs(stroke[3] - stroke[1])) + 1;
+            for(int t=0; t<steps; t++) {
+                int r = stroke[0] + (stroke[2] - stroke[0]) * t / steps + shiftRow;
+                int c = stroke[1] + (stroke[3] - stroke[1]) * t / steps + shiftCol;
+                if (0 <= r && r < DIM && 0 <= c && c < DIM && random.nextInt(10) != 0) {
+                    image[1 + r * DIM + c] = 160 + random.nextInt(96);
+                }
+            }
+        }
+        for(int n=0; n<20; n++) {  // background noise
+            image[1 + random.nextInt(DIM * DIM)] = random.nextInt(256);
+        }
+
+        return image;
+    }
+
+    public int[][] matrix(int rows) {
+        int[][] matrix = new int[rows][];
+        for(int i=0; i<rows; i++) {
+            matrix[i] = image(i);
+        }
+        return matrix;
+    }
+
+    /**
+     * Writes the given number of images as a csv file, in mnist standard format
+     * @param firstIndex - the index of the first image, so a holdout set of the same seed can be written
+     */
+    public void writeCsv(String file_path, long firstIndex, long rows) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file_path), 1 << 16)) {
+            StringBuilder line = new StringBuilder();
+            for(long i=firstIndex; i<firstIndex+rows; i++) {
+                int[] image = image(i);
+                line.setLength(0);
+                for(int j=0; j<image.length; j++) {
+                    if (j > 0) {
+                        line.append(',');
+                    }
+                    line.append(image[j]);
+                }
+                line.append('\n');
+                out.write(line.toString());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticImages <rows> <output_filename> [seed] [first_index]");
+            System.exit(1);
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long firstIndex = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        new SyntheticImages(seed).writeCsv(args[1], firstIndex, Long.parseLong(args[0]));
+    }
+}
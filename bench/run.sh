@@ -0,0 +1,13 @@
+#!/bin/sh
+# Compiles the sources with the benchmarks, and runs the given benchmark class with the rest of the arguments.
+# e.g.: bench/run.sh HotPathBenchmarks -json results.json getBestIG
+
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -d "$OUT" "$ROOT"/src/*.java "$ROOT"/bench/*.java
+MAIN=$1
+shift
+java $JAVA_OPTS -cp "$OUT" "$MAIN" "$@"
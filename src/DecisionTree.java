@@ -1,21 +1,25 @@
-import java.io.Serializable;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.stream.DoubleStream;
 
-public class DecisionTree implements Serializable {
+public class DecisionTree {
     private int T;
     private int version;
-    int[][] matrix;
+    byte[][] matrix;
+    private Map<String, Integer> ver2Config;
     private Node root;
+    private FlatTree flatTree;
+    private volatile TreeClassifier classifier;
 
     /**
      * Represents a decision tree
      * @param matrix: an dataset in the format of an answers matrix,
      *                which means that it's columns are the answers to the questions
+     *                (a byte each, see Questions.convertToByteAnswersMatrix)
      * @param indexes - a list containing all the images that reach the root node,
      *                 Usually all of them (indexes = {0, ..., matrix.length - 1}
      */
-    DecisionTree(int[][] matrix, int[] indexes) {
+    DecisionTree(byte[][] matrix, int[] indexes) {
         this.matrix = matrix;
         this.root = new LeafNode(this, null, indexes, 0);
     }
@@ -30,20 +34,73 @@ public class DecisionTree implements Serializable {
         root = other.root.copy();
     }
 
-    DecisionTree(DecisionTree other, int T, int version) {
+    /**
+     * @param ver2Config - the configuration the answers matrix was made with (null for ver1),
+     *                   which is saved with the tree, so prediction converts images the same way
+     */
+    DecisionTree(DecisionTree other, int T, int version, Map<String, Integer> ver2Config) {
         this(other);
         this.T = T;
         this.version = version;
+        this.ver2Config = ver2Config;
+    }
+
+    /**
+     * Makes a tree out of its compiled form (used when loading a saved model).
+     * Prediction only needs the compiled form, so no Node graph is made (the root is null)
+     */
+    DecisionTree(FlatTree flatTree, int T, int version, Map<String, Integer> ver2Config) {
+        matrix = null;
+        root = null;
+        this.flatTree = flatTree;
+        this.T = T;
+        this.version = version;
+        this.ver2Config = ver2Config;
     }
 
-    public void setRoot(Node newRoot) {
+    public synchronized void setRoot(Node newRoot) {
         root = newRoot;
+        flatTree = null;
+        classifier = null;
     }
 
+    /**
+     * Returns the root of the Node graph, which only trees made by training have (it's null for loaded trees)
+     */
     public Node getRoot() {
         return root;
     }
 
+    /**
+     * Returns the compiled form of this tree, which is used for prediction.
+     * It is built once, on first use - so it should only be called on trees that are done growing
+     * (the copies made by TreeMaker), and not on the tree that is being built.
+     */
+    public synchronized FlatTree getFlatTree() {
+        if (flatTree == null) {
+            flatTree = new FlatTree(this);
+        }
+        return flatTree;
+    }
+
+    /**
+     * Returns the fastest available classifier for this tree (see TreeCompiler.compile),
+     * with the same restrictions as getFlatTree().
+     * It's called for every prediction by the server's threads, so it only locks until the classifier is made
+     */
+    public TreeClassifier getClassifier() {
+        TreeClassifier result = classifier;
+        if (result == null) {
+            synchronized (this) {
+                if (classifier == null) {
+                    classifier = TreeCompiler.compile(this);
+                }
+                result = classifier;
+            }
+        }
+        return result;
+    }
+
     public int getT() {
         return T;
     }
@@ -51,9 +108,13 @@ public class DecisionTree implements Serializable {
     public int getVersion() {
         return version;
     }
+
+    public Map<String, Integer> getVer2Config() {
+        return ver2Config;
+    }
 }
 
-abstract class Node implements Serializable {
+abstract class Node {
     protected DecisionTree tree;
     protected InternalNode parent;
     protected int[] indexes;
@@ -120,14 +181,25 @@ class InternalNode extends Node {
      * An internal node, which is initialized with a question, and creates it's own child nodes
      * based on that question (and the indexes)
      * @param question - a question id, (from 1 to 785 in ver1 - column 0 is for the label)
+     * @param digit - the digit of the leaf this node replaces, for children that no image reaches
      */
-    protected InternalNode(DecisionTree tree, InternalNode parent, int[] indexes, int question) {
+    protected InternalNode(DecisionTree tree, InternalNode parent, int[] indexes, int question, int digit) {
         super(tree, parent, indexes);
         this.question = question;
         left = null;
         right = null;
 
-        apply(question);
+        apply(question, digit);
+        this.indexes = null;  // the children have them now, and an internal node never needs them again
+    }
+
+    /**
+     * A prediction-only internal node, with the given children
+     */
+    protected InternalNode(int question, Node left, Node right) {
+        this.question = question;
+        this.left = left;
+        this.right = right;
     }
 
     protected InternalNode(InternalNode other) {
@@ -164,13 +236,19 @@ class InternalNode extends Node {
     }
 
     /**
-     * Returns the most common digit in the left and right child nodes, based on their Ni(L) values
+     * Returns the most common digit in the left and right child nodes, based on their Ni(L) values.
+     * A child that no image reaches (e.g. in the split of a pure leaf) gets this node's most common digit,
+     * the best guess for it - and so a pure leaf's split has two leafs of the same digit, which TreeCompactor merges.
+     * If no image reaches this node either, both children keep the digit of the leaf it replaced
+     * @param digit - the digit of the leaf this node replaced
      */
-    private int[] getMostCommonDigits(double[] leftNiArray, double[] rightNiArray) {
+    private int[] getMostCommonDigits(double[] leftNiArray, double[] rightNiArray, int digit) {
         int leftDigit = -1;
         double leftLargest = -1;
         int rightDigit = -1;
         double rightLargest = -1;
+        int commonDigit = digit;
+        double largest = 0;
 
         for(int i=0; i<10; i++) {
             if (leftLargest < leftNiArray[i]) {
@@ -181,8 +259,12 @@ class InternalNode extends Node {
                 rightDigit = i;
                 rightLargest = rightNiArray[i];
             }
+            if (largest < leftNiArray[i] + rightNiArray[i]) {
+                commonDigit = i;
+                largest = leftNiArray[i] + rightNiArray[i];
+            }
         }
-        return new int[] {leftDigit, rightDigit};
+        return new int[] {leftLargest == 0 ? commonDigit : leftDigit, rightLargest == 0 ? commonDigit : rightDigit};
     }
 
     /**
@@ -211,15 +293,16 @@ class InternalNode extends Node {
      * Set node question to the given one, and create child leafs with their corresponding
      * indexes and digits, based on the application of that question
      * @param question - the question id
+     * @param digit - the digit of the leaf this node replaced
      */
-    public void apply(int question) {
+    public void apply(int question, int digit) {
         double[][] NiArrays = getSplitNiArrays(question);
         double[] leftNiArray = NiArrays[0];
         double[] rightNiArray = NiArrays[1];
         int leftNL = (int) DoubleStream.of(leftNiArray).sum();
         int rightNL = (int) DoubleStream.of(rightNiArray).sum();
 
-        int[] commonDigits = getMostCommonDigits(leftNiArray, rightNiArray);
+        int[] commonDigits = getMostCommonDigits(leftNiArray, rightNiArray, digit);
         int[][] indexes = getSplitIndexes(question, leftNL, rightNL);
 
 
@@ -241,6 +324,13 @@ class LeafNode extends Node {
         this.digit = digit;
     }
 
+    /**
+     * A prediction-only leaf
+     */
+    protected LeafNode(int digit) {
+        this.digit = digit;
+    }
+
     protected LeafNode(LeafNode other) {
         super(other);
         digit = other.digit;
@@ -321,8 +411,10 @@ class LeafNode extends Node {
      * This is probably the heaviest operation in the whole algorithm.
      */
     public IGStruct getBestIG(){
+        SplitEvent split = Metrics.startSplit(indexes.length);
         double _HL = HL();
         if (_HL == 0) {
+            Metrics.endSplit(split, 0, 0, 1);
             return new IGStruct(this, 0, 1);  // choose question 1 for debug-ability
         }
 
@@ -334,7 +426,9 @@ class LeafNode extends Node {
             bestIG.setIfBigger(this, currentIG, q);
         }
 
-        return bestIG.factored();
+        bestIG.factored();
+        Metrics.endSplit(split, tree.matrix[0].length - 1, bestIG.getIG(), bestIG.getQuestion());
+        return bestIG;
     }
 
     /**
@@ -343,7 +437,7 @@ class LeafNode extends Node {
      * @return - the new internal node
      */
     public InternalNode apply(int question){
-        InternalNode newNode = new InternalNode(tree, parent, indexes, question);
+        InternalNode newNode = new InternalNode(tree, parent, indexes, question, digit);
         if (parent == null) {  // means this is the initial root leaf
             tree.setRoot(newNode);
         } else {
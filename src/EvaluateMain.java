@@ -0,0 +1,38 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+public class EvaluateMain {
+
+    private static void exit(String msg) {
+        System.err.println(msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            exit("Usage: evaluate <tree_filename> <testset_filename>");
+        }
+
+        String treeFileName = args[0];
+        String testSetFileName = args[1];
+
+        DecisionTree t = null;
+        try {
+            t = ModelFile.read(treeFileName);
+        } catch (ModelFile.FormatException e) {
+            exit("Error reading file " + treeFileName + ": " + e.getMessage());
+        } catch (IOException e) {
+            exit("Error opening file " + treeFileName);
+        }
+
+        Evaluation evaluation = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(testSetFileName))) {
+            evaluation = Evaluation.evaluate(t, reader);
+        } catch (IOException e) {
+            exit("Error opening file " + testSetFileName);
+        }
+
+        System.out.println(evaluation.toJson());
+    }
+}
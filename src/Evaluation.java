@@ -0,0 +1,168 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+public class Evaluation {
+    /**
+     * Number of rows each parallel task of a streamed batch handles
+     */
+    private static final int CHUNK_SIZE = 512;
+    private static final int BATCH_SIZE = 8192;
+
+    private final long[][] confusion;  // confusion[actual][predicted] counts
+    private long total;
+
+    /**
+     * The results of a tree on a labeled dataset: accuracy, confusion matrix and per digit precision and recall.
+     * It's an accumulator - rows are added one by one, and accumulators of different parts
+     * of the dataset can be merged
+     */
+    public Evaluation() {
+        confusion = new long[10][10];
+        total = 0;
+    }
+
+    public void add(int actualDigit, int predictedDigit) {
+        confusion[actualDigit][predictedDigit]++;
+        total++;
+    }
+
+    public void merge(Evaluation other) {
+        for(int i=0; i<10; i++) {
+            for(int j=0; j<10; j++) {
+                confusion[i][j] += other.confusion[i][j];
+            }
+        }
+        total += other.total;
+    }
+
+    /**
+     * Evaluates the tree on an answers matrix, in a single parallel pass.
+     * Every thread accumulates its own Evaluation, and they are merged at the end
+     */
+    public static Evaluation evaluate(DecisionTree tree, int[][] answers_matrix) {
+        TreeClassifier classifier = tree.getClassifier();
+        return IntStream.range(0, answers_matrix.length).parallel().collect(Evaluation::new,
+                (evaluation, im) -> evaluation.add(answers_matrix[im][0], classifier.predict(answers_matrix[im])),
+                Evaluation::merge);
+    }
+
+    /**
+     * Evaluates the tree on an answers matrix in its byte form (see Questions.convertToByteAnswersMatrix),
+     * the same way as the int one
+     */
+    public static Evaluation evaluate(DecisionTree tree, byte[][] answers_matrix) {
+        FlatTree flatTree = tree.getFlatTree();
+        return IntStream.range(0, answers_matrix.length).parallel().collect(Evaluation::new,
+                (evaluation, im) -> evaluation.add(answers_matrix[im][0], flatTree.predict(answers_matrix[im])),
+                Evaluation::merge);
+    }
+
+    /**
+     * Evaluates the tree on a csv file of raw labeled images (in mnist standard format), which is streamed
+     * batch by batch, so it can be of any size. Every batch is evaluated in parallel chunks,
+     * with the questions answered lazily from the pixels (see LazyAnswers)
+     */
+    public static Evaluation evaluate(DecisionTree tree, BufferedReader reader) throws IOException {
+        TreeClassifier classifier = tree.getClassifier();
+        Evaluation result = new Evaluation();
+        int[][] rows = new int[BATCH_SIZE][];
+
+        int count = Images.parse_csv_batch(reader, rows);
+        while (count > 0) {
+            int rowsCount = count;
+            int chunks = (rowsCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            Evaluation batch = IntStream.range(0, chunks).parallel().collect(Evaluation::new, (evaluation, chunk) -> {
+                LazyAnswers answers = new LazyAnswers(tree.getVersion(), tree.getVer2Config());
+                for(int im=chunk*CHUNK_SIZE; im<Math.min((chunk+1)*CHUNK_SIZE, rowsCount); im++) {
+                    answers.setImage(rows[im]);
+                    evaluation.add(rows[im][0], classifier.predict(answers));
+                }
+            }, Evaluation::merge);
+            result.merge(batch);
+
+            count = Images.parse_csv_batch(reader, rows);
+        }
+
+        return result;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the success percentage (as a fracture)
+     */
+    public double getAccuracy() {
+        long success = 0;
+        for(int i=0; i<10; i++) {
+            success += confusion[i][i];
+        }
+        return total == 0 ? 0 : success / (double) total;
+    }
+
+    public long getCount(int actualDigit, int predictedDigit) {
+        return confusion[actualDigit][predictedDigit];
+    }
+
+    /**
+     * Number of instances of the digit in the dataset
+     */
+    public long getSupport(int digit) {
+        long support = 0;
+        for(int j=0; j<10; j++) {
+            support += confusion[digit][j];
+        }
+        return support;
+    }
+
+    /**
+     * The fracture of the predictions of the digit that were right (0 if it was never predicted)
+     */
+    public double getPrecision(int digit) {
+        long predicted = 0;
+        for(int i=0; i<10; i++) {
+            predicted += confusion[i][digit];
+        }
+        return predicted == 0 ? 0 : confusion[digit][digit] / (double) predicted;
+    }
+
+    /**
+     * The fracture of the instances of the digit that were predicted right (0 if there are none)
+     */
+    public double getRecall(int digit) {
+        long support = getSupport(digit);
+        return support == 0 ? 0 : confusion[digit][digit] / (double) support;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"rows\": ").append(total);
+        json.append(", \"accuracy\": ").append(getAccuracy());
+        json.append(", \"error\": ").append(1.0 - getAccuracy());
+
+        json.append(", \"confusion_matrix\": [");
+        for(int i=0; i<10; i++) {
+            json.append(i == 0 ? "[" : ", [");
+            for(int j=0; j<10; j++) {
+                json.append(j == 0 ? "" : ", ").append(confusion[i][j]);
+            }
+            json.append("]");
+        }
+        json.append("]");
+
+        json.append(", \"digits\": [");
+        for(int i=0; i<10; i++) {
+            json.append(i == 0 ? "" : ", ");
+            json.append("{\"digit\": ").append(i);
+            json.append(", \"support\": ").append(getSupport(i));
+            json.append(", \"precision\": ").append(getPrecision(i));
+            json.append(", \"recall\": ").append(getRecall(i));
+            json.append("}");
+        }
+        json.append("]}");
+
+        return json.toString();
+    }
+}
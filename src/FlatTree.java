@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FlatTree implements TreeClassifier {
+    private final int[] questions;
+    private final int[] left;
+    private final int[] right;
+    private final int[] leafDigits;
+    private final int root;
+
+    /**
+     * A compiled, prediction-only form of a DecisionTree.
+     * Internal nodes are laid out in parallel arrays (question, left child, right child),
+     * in pre-order, so the left child of a node is usually the very next entry.
+     * Nodes that are shared in the tree (see TreeCompactor) are laid out once.
+     * A child reference that is >= 0 is an index of an internal node,
+     * and a negative one is an encoded leaf id (see encodeLeaf), whose digit is in leafDigits.
+     */
+    FlatTree(DecisionTree tree) {
+        List<Integer> questionsList = new ArrayList<>();
+        List<Integer> leftList = new ArrayList<>();
+        List<Integer> rightList = new ArrayList<>();
+        List<Integer> digitsList = new ArrayList<>();
+
+        root = flatten(tree.getRoot(), new IdentityHashMap<>(), questionsList, leftList, rightList, digitsList);
+
+        questions = toArray(questionsList);
+        left = toArray(leftList);
+        right = toArray(rightList);
+        leafDigits = toArray(digitsList);
+    }
+
+    /**
+     * Makes a flat tree from already flattened arrays (see ModelFile)
+     */
+    FlatTree(int[] questions, int[] left, int[] right, int[] leafDigits, int root) {
+        this.questions = questions;
+        this.left = left;
+        this.right = right;
+        this.leafDigits = leafDigits;
+        this.root = root;
+    }
+
+    private static int encodeLeaf(int leafId) {
+        return -leafId - 1;
+    }
+
+    private static int decodeLeaf(int ref) {
+        return -ref - 1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt(i->i).toArray();
+    }
+
+    /**
+     * Appends the given node (and its subtree) to the lists, in pre-order, unless it was already appended
+     * @param refs - the references of the nodes that were already appended
+     * @return a reference to the node - its internal index, or an encoded leaf id
+     */
+    private static int flatten(Node node, Map<Node, Integer> refs, List<Integer> questions, List<Integer> left,
+                               List<Integer> right, List<Integer> digits) {
+        Integer ref = refs.get(node);
+        if (ref != null) {
+            return ref;
+        }
+
+        if (node instanceof LeafNode) {
+            digits.add(((LeafNode) node).getDigit());
+            ref = encodeLeaf(digits.size() - 1);
+            refs.put(node, ref);
+            return ref;
+        }
+
+        InternalNode internal = (InternalNode) node;
+        int id = questions.size();
+        refs.put(node, id);
+        questions.add(internal.getQuestion());
+        left.add(0);  // placeholders, filled after the children are flattened
+        right.add(0);
+
+        left.set(id, flatten(internal.getLeft(), refs, questions, left, right, digits));
+        right.set(id, flatten(internal.getRight(), refs, questions, left, right, digits));
+        return id;
+    }
+
+    @Override
+    public int predict(int[] answers) {
+        int cur = root;
+        while (cur >= 0) {
+            cur = answers[questions[cur]] == 0 ? left[cur] : right[cur];
+        }
+        return leafDigits[decodeLeaf(cur)];
+    }
+
+    /**
+     * Predicts from answers in their byte form (as the trees are trained on)
+     */
+    public int predict(byte[] answers) {
+        int cur = root;
+        while (cur >= 0) {
+            cur = answers[questions[cur]] == 0 ? left[cur] : right[cur];
+        }
+        return leafDigits[decodeLeaf(cur)];
+    }
+
+    @Override
+    public int predict(LazyAnswers answers) {
+        int cur = root;
+        while (cur >= 0) {
+            cur = answers.answer(questions[cur]) == 0 ? left[cur] : right[cur];
+        }
+        return leafDigits[decodeLeaf(cur)];
+    }
+
+    int getRoot() {
+        return root;
+    }
+
+    int getQuestion(int node) {
+        return questions[node];
+    }
+
+    int getLeft(int node) {
+        return left[node];
+    }
+
+    int getRight(int node) {
+        return right[node];
+    }
+
+    int getLeafDigit(int leafRef) {
+        return leafDigits[decodeLeaf(leafRef)];
+    }
+
+    public int getInternalCount() {
+        return questions.length;
+    }
+
+    public int getLeafCount() {
+        return leafDigits.length;
+    }
+}
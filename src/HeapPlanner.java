@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+public class HeapPlanner {
+    // rough sizes of what learntree keeps on the heap, in bytes. They are on the safe side
+    // (e.g. 8 byte references, as without compressed oops)
+    private static final long ARRAY_HEADER = 16;
+    private static final long REFERENCE = 8;
+    private static final long NODE = 48;  // an InternalNode/LeafNode object
+    private static final long IG_STRUCT = 32;  // the best question of a leaf, while the tree is built
+    private static final long FLAT_NODE = 16;  // the FlatTree (or compiled classifier) part of a scored tree's node
+    private static final long COMPACTION_NODE = 128;  // a canonical node of TreeCompactor, with its key and map entries
+    private static final long SCORING_THREAD = 2048;  // the Evaluation accumulator and stream task of a scoring thread
+
+    /**
+     * The estimate has to be this much smaller than the heap, since the GC needs some free heap to work in
+     */
+    private static final double HEADROOM = 1.1;
+
+    /**
+     * The estimate of how much heap learntree needs, against the heap it has
+     */
+    public static class Plan {
+        private final int threads;
+        private final Map<String, Long> stages;  // peak bytes of every stage of learntree, in order
+        private final long budget;
+
+        private Plan(int threads, Map<String, Long> stages, long budget) {
+            this.threads = threads;
+            this.stages = stages;
+            this.budget = budget;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getEstimatedBytes() {
+            return stages.values().stream().mapToLong(bytes -> bytes).max().orElse(0);
+        }
+
+        public long getBudgetBytes() {
+            return budget;
+        }
+
+        public boolean fits() {
+            return getEstimatedBytes() * HEADROOM <= budget;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder description = new StringBuilder();
+            description.append(String.format("estimated peak heap: %d MB (with %.0f%% GC headroom: %d MB), heap budget: %d MB%n",
+                    toMB(getEstimatedBytes()), (HEADROOM - 1) * 100, toMB((long) (getEstimatedBytes() * HEADROOM)),
+                    toMB(budget)));
+            for (Map.Entry<String, Long> stage : stages.entrySet()) {
+                description.append(String.format("  %s: %d MB%n", stage.getKey(), toMB(stage.getValue())));
+            }
+            description.append("  (with ").append(threads).append(" validation scoring threads)");
+            return description.toString();
+        }
+    }
+
+    private static long toMB(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+
+    private static long array(long length, long elementSize) {
+        return (ARRAY_HEADER + elementSize * length + 7) / 8 * 8;
+    }
+
+    private static long intArray(long length) {
+        return array(length, 4);
+    }
+
+    /**
+     * A matrix of rows x columns elements, as learntree holds them (an array per row)
+     */
+    private static long matrix(long rows, long columns, long elementSize) {
+        return rows * (array(columns, elementSize) + REFERENCE);
+    }
+
+    /**
+     * The number of columns in the answers matrix (including the label)
+     */
+    static int getAnswersColumns(int version, int columns, Map<String, Integer> ver2Config) {
+        if (version == 1) {
+            return columns;
+        }
+        return 1 + ver2Config.get(Questions.ROWS_NUM) * ver2Config.get(Questions.ROWS_LEVELS)
+                + ver2Config.get(Questions.COLS_NUM) * ver2Config.get(Questions.COLS_LEVELS)
+                + ver2Config.get(Questions.BLOCKS_NUM_SQR) * ver2Config.get(Questions.BLOCKS_NUM_SQR)
+                * ver2Config.get(Questions.BLOCKS_LEVELS);
+    }
+
+    /**
+     * The tree that is being built by TreeMaker.runAlgorithm on the given rows:
+     * the root's indexes (which its caller holds), the indexes of all the leafs, and the ones of a leaf that is
+     * being split - along with the nodes and the best question of every leaf
+     */
+    private static long buildTree(long rows, long maxT) {
+        return 3 * intArray(rows) + maxT * (2 * NODE + IG_STRUCT + ARRAY_HEADER + 2 * REFERENCE);
+    }
+
+    /**
+     * A scored copy of a tree with T internal nodes
+     */
+    private static long scoredTree(long T) {
+        return (2 * T + 1) * (NODE + FLAT_NODE);
+    }
+
+    /**
+     * Estimates the peak heap of every stage of learntree (see LearnTreeMain and TreeMaker.makeTreeFromAnswers)
+     */
+    static Map<String, Long> estimate(long rows, int columns, int version, Map<String, Integer> ver2Config,
+                                      double P, int L, int threads) {
+        long answersColumns = getAnswersColumns(version, columns, ver2Config);
+        long maxT = 1L << L;
+        long validationRows = (long) (P * rows);
+        long answers = matrix(rows, answersColumns, 1);
+
+        long candidates = 0;  // the trees of all the T values, which are kept until they're scored
+        for(long T=1; T<=maxT; T*=2) {
+            candidates += scoredTree(T);
+        }
+
+        Map<String, Long> stages = new LinkedHashMap<>();
+        // the byte answers, the list that collected them (which grows by half every time) and its copy to an array,
+        // and a chunk of raw rows along with their int answers
+        stages.put("parse_csv", answers + rows * REFERENCE * 5 / 2
+                + Questions.CONVERSION_CHUNK_SIZE * (intArray(columns) + intArray(answersColumns) + 2 * REFERENCE));
+        stages.put("validation_training", answers
+                + intArray(rows) + validationRows * REFERENCE  // the split indexes and the validation set
+                + buildTree(rows - validationRows, maxT)
+                + candidates + threads * SCORING_THREAD);
+        stages.put("final_training", answers + buildTree(rows, maxT) + 2 * scoredTree(maxT));
+        stages.put("compaction", answers + scoredTree(maxT) + (2 * maxT + 1) * COMPACTION_NODE);
+        return stages;
+    }
+
+    /**
+     * @param rows - the number of images in the training set
+     * @param columns - the number of columns in the training set (label and pixels)
+     * @param budget - the heap that learntree may use, in bytes
+     */
+    public static Plan plan(long rows, int columns, int version, Map<String, Integer> ver2Config,
+                            double P, int L, long budget) {
+        // the validation scoring is the only parallel part, and its threads take next to no memory -
+        // so they are only accounted for, and never cut down to fit
+        int threads = ForkJoinPool.getCommonPoolParallelism() + 1;  // the caller takes part too
+        return new Plan(threads, estimate(rows, columns, version, ver2Config, P, L, threads), budget);
+    }
+
+    /**
+     * Plans for the given training set file, against the max heap of this JVM (-Xmx).
+     * It only counts the file's rows and columns, so it's quick, and nothing big is allocated before it says
+     * whether the training fits
+     */
+    public static Plan plan(String trainingSetFile, int version, Map<String, Integer> ver2Config,
+                            double P, int L) throws IOException {
+        long[] size = countRowsAndColumns(trainingSetFile);
+        return plan(size[0], (int) size[1], version, ver2Config, P, L, Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * Counts the rows of a csv file, and the columns of its first row, without parsing it
+     * @return {rows, columns}
+     */
+    static long[] countRowsAndColumns(String file_path) throws IOException {
+        long rows = 0;
+        long columns = 1;
+        boolean inRow = false;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file_path))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for(int i=0; i<read; i++) {
+                    if (buffer[i] == '\n') {
+                        rows++;
+                        inRow = false;
+                    } else {
+                        if (rows == 0 && buffer[i] == ',') {
+                            columns++;
+                        }
+                        inRow = true;
+                    }
+                }
+            }
+        }
+        if (inRow) {
+            rows++;  // the last row doesn't end with a new line
+        }
+        return new long[] {rows, columns};
+    }
+}
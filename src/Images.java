@@ -24,12 +24,60 @@ public class Images {
             return null;
         }
 
-        int[][] arrayMatrix = new int[listMatrix.size()][listMatrix.get(0).length];
+        return listMatrix.toArray(new int[listMatrix.size()][]);  // the rows themselves are not copied
+    }
+
+    /**
+     * Reads up to batch.length rows of a csv file in mnist standard format into batch.
+     * The int arrays already in batch are reused when they have the right length,
+     * so reading a whole file batch by batch allocates (almost) nothing.
+     * @return the number of rows read, 0 at the end of the file
+     */
+    public static int parse_csv_batch(BufferedReader br, int[][] batch) throws IOException {
+        int rows = 0;
+        String line;
+        while (rows < batch.length && (line = br.readLine()) != null) {
+            batch[rows] = parse_csv_line(line, batch[rows]);
+            rows++;
+        }
+
+        return rows;
+    }
 
-        for (int i=0; i<listMatrix.size(); i++) {
-            arrayMatrix[i] = listMatrix.get(i);
+    /**
+     * Parses a single csv line into row, if it's not null and has the right length, or into a new array
+     * @return the array holding the values
+     */
+    public static int[] parse_csv_line(String line, int[] row) {
+        int length = 1;
+        for (int i=0; i<line.length(); i++) {
+            if (line.charAt(i) == ',') {
+                length++;
+            }
+        }
+        if (row == null || row.length != length) {
+            row = new int[length];
+        }
+
+        int col = 0;
+        int val = 0;
+        boolean negative = false;
+        for (int i=0; i<line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ',') {
+                row[col++] = negative ? -val : val;
+                val = 0;
+                negative = false;
+            } else if (c == '-') {
+                negative = true;
+            } else if ('0' <= c && c <= '9') {
+                val = val * 10 + (c - '0');
+            } else {
+                throw new NumberFormatException("Bad value in line: " + line);
+            }
         }
+        row[col] = negative ? -val : val;
 
-        return arrayMatrix;
+        return row;
     }
 }
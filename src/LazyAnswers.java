@@ -0,0 +1,161 @@
+import java.util.Arrays;
+import java.util.Map;
+
+public class LazyAnswers {
+    private final int version;
+    private final Map<String, Integer> config;
+
+    private int dim;
+    private int rowsNum, rowsLevels, rowsUnit, rowsInLayer;
+    private int colsNum, colsLevels, colsUnit, colsInLayer;
+    private int blocksInRow, blocksLevels, blocksUnit, pixelsInBlock;
+
+    private int[] image;
+
+    /**
+     * Memoized black sums of the rows, then the columns, then the blocks, of the current image.
+     * A sum is valid only if its stamp equals the current stamp, so moving to the next image is O(1)
+     */
+    private int[] regionSums;
+    private int[] regionStamps;
+    private int stamp;
+
+    /**
+     * Answers the questions about a single raw image on demand, straight from its pixels,
+     * the same as the matching column of convertToAnswersMatrixVer1/convertToAnswersMatrixVer2 would.
+     * A tree only asks about the questions along one root-to-leaf path, so this is much cheaper
+     * than converting the whole image, when predicting.
+     * @param version - 1/2
+     * @param config - the ver2 questions configuration (ignored for ver1)
+     */
+    public LazyAnswers(int version, Map<String, Integer> config) {
+        this.version = version;
+        this.config = config;
+        dim = -1;
+    }
+
+    /**
+     * Sets the image (a raw csv row, with the label at index 0) that the following questions are about
+     */
+    public void setImage(int[] image) {
+        this.image = image;
+        if (version == 2) {
+            int imageDim = (int) Math.sqrt(image.length - 1);
+            if (imageDim != dim) {
+                initVer2(imageDim);
+            }
+
+            stamp++;
+            if (stamp == 0) {  // wrapped around, so old stamps could look valid
+                Arrays.fill(regionStamps, 0);
+                stamp = 1;
+            }
+        }
+    }
+
+    /**
+     * Computes the layout of the questions for images of the given dimension,
+     * with the same checks and units as convertToAnswersMatrixVer2
+     */
+    private void initVer2(int imageDim) {
+        dim = imageDim;
+        rowsNum = config.get(Questions.ROWS_NUM);
+        colsNum = config.get(Questions.COLS_NUM);
+        blocksInRow = config.get(Questions.BLOCKS_NUM_SQR);
+
+        if(rowsNum > dim || colsNum > dim || blocksInRow > dim) {
+            throw new Error("Num of row/cols/blocks can't exceed: " + String.valueOf(dim));
+        }
+        if(dim % rowsNum != 0 || dim % colsNum != 0 || dim % blocksInRow != 0) {
+            throw new Error("num of rows/cols/blocks has to be a divisor of: " + String.valueOf(dim));
+        }
+
+        rowsLevels = config.get(Questions.ROWS_LEVELS);
+        rowsInLayer = dim / rowsNum;
+        rowsUnit = (rowsInLayer * dim * Questions.MAX_BYTE_VAL) / rowsLevels;
+
+        colsLevels = config.get(Questions.COLS_LEVELS);
+        colsInLayer = dim / colsNum;
+        colsUnit = (colsInLayer * dim * Questions.MAX_BYTE_VAL) / colsLevels;
+
+        blocksLevels = config.get(Questions.BLOCKS_LEVELS);
+        pixelsInBlock = dim / blocksInRow;
+        blocksUnit = (pixelsInBlock * dim * Questions.MAX_BYTE_VAL) / blocksLevels;
+
+        int regions = rowsNum + colsNum + blocksInRow * blocksInRow;
+        regionSums = new int[regions];
+        regionStamps = new int[regions];
+        stamp = 0;
+    }
+
+    /**
+     * Returns the answer (0/1) of the current image to the given question id
+     */
+    public int answer(int question) {
+        if (version == 1) {
+            return image[question] > 128 ? 1 : 0;
+        }
+
+        int q = question - 1;  // shifted due to the label at index 0
+        int rowQuestions = rowsNum * rowsLevels;
+        if (q < rowQuestions) {
+            return answer(q / rowsLevels, rowsUnit * (q % rowsLevels));
+        }
+
+        q -= rowQuestions;
+        int colQuestions = colsNum * colsLevels;
+        if (q < colQuestions) {
+            return answer(rowsNum + q / colsLevels, colsUnit * (q % colsLevels));
+        }
+
+        q -= colQuestions;
+        return answer(rowsNum + colsNum + q / blocksLevels, blocksUnit * (q % blocksLevels));
+    }
+
+    private int answer(int region, int blackLevel) {
+        if (regionStamps[region] != stamp) {
+            regionSums[region] = regionSum(region);
+            regionStamps[region] = stamp;
+        }
+        return regionSums[region] <= blackLevel ? 1 : 0;
+    }
+
+    private int pixel(int i, int j) {
+        return image[1 + i * dim + j];  // shifted due to the label at index 0
+    }
+
+    /**
+     * Sums the pixels of a row layer, a column layer or a block, by the region's index in regionSums
+     */
+    private int regionSum(int region) {
+        int sum = 0;
+        if (region < rowsNum) {
+            for(int i=region*rowsInLayer; i<(region+1)*rowsInLayer; i++) {
+                for(int j=0; j<dim; j++) {
+                    sum += pixel(i, j);
+                }
+            }
+            return sum;
+        }
+
+        region -= rowsNum;
+        if (region < colsNum) {
+            for(int i=0; i<dim; i++) {
+                for(int j=region*colsInLayer; j<(region+1)*colsInLayer; j++) {
+                    sum += pixel(i, j);
+                }
+            }
+            return sum;
+        }
+
+        region -= colsNum;
+        int top = (region / blocksInRow) * pixelsInBlock;
+        int left = (region % blocksInRow) * pixelsInBlock;
+        for(int r=0; r<pixelsInBlock; r++) {
+            for(int c=0; c<pixelsInBlock; c++) {
+                sum += pixel(top + r, left + c);
+            }
+        }
+        return sum;
+    }
+}
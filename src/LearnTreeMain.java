@@ -1,6 +1,6 @@
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 
 public class LearnTreeMain {
 
@@ -48,19 +48,39 @@ public class LearnTreeMain {
             exit("L should be a positive integer");
         }
 
-        int[][] images_matrix = Images.parse_csv(trainingSetFile);
-        if (images_matrix == null) {
+        // plan before reading anything big, so a run that can't fit fails now and not in the middle
+        HeapPlanner.Plan plan = null;
+        try {
+            plan = HeapPlanner.plan(trainingSetFile, version, Questions.BEST_CONFIG, P, L);
+        } catch (IOException e) {
             exit("Error opening file " + trainingSetFile);
         }
+        if (!plan.fits()) {
+            exit("Not enough heap for this training set and L (run with a bigger -Xmx):\n" + plan);
+        }
 
-        DecisionTree t = TreeMaker.makeTree(version, P, L, images_matrix, Questions.BEST_CONFIG);
+        // the images are converted to answers as they are read, so they're never all held at once
+        byte[][] answers_matrix = null;
+        try (Metrics.Stage stage = Metrics.startStage("parse_csv");
+             BufferedReader reader = new BufferedReader(new FileReader(trainingSetFile))) {
+            answers_matrix = Questions.readByteAnswersMatrix(reader, version, Questions.BEST_CONFIG);
+            stage.setRows(answers_matrix.length);
+        } catch (IOException e) {
+            exit("Error opening file " + trainingSetFile);
+        }
+
+        DecisionTree t = TreeMaker.makeTreeFromAnswers(version, P, L, answers_matrix, Questions.BEST_CONFIG);
 
         try {
-            ObjectOutputStream treeObjStream = new ObjectOutputStream(new FileOutputStream(outputTreeFile));
-            treeObjStream.writeObject(t);
-            treeObjStream.close();
+            ModelFile.write(t, outputTreeFile);
         } catch (IOException e) {
             exit("Error opening file " + outputTreeFile);
         }
+
+        try {
+            Metrics.writeReport();
+        } catch (IOException e) {
+            exit("Error writing the metrics report");
+        }
     }
 }
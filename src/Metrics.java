@@ -0,0 +1,152 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class Metrics {
+    /**
+     * When this system property is set to a file name, a json report of all the stages and splits
+     * is written there at the end of the run
+     */
+    public static final String REPORT_PROPERTY = "metrics.report";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final boolean reportEnabled = System.getProperty(REPORT_PROPERTY) != null;
+    private static final List<String> stagesReport = new ArrayList<>();
+    private static final List<String> splitsReport = new ArrayList<>();
+
+    /**
+     * A timed stage of learntree or predict. It's reported as a JFR event (digits.Stage),
+     * and to the json report if enabled. Use with try-with-resources (or close it in a finally block).
+     */
+    public static class Stage implements AutoCloseable {
+        private final StageEvent event;
+        private final long startNanos;
+        private final long startAllocated;
+
+        private Stage(String name) {
+            event = new StageEvent();
+            event.stage = name;
+            event.begin();
+            startNanos = System.nanoTime();
+            startAllocated = THREADS.getCurrentThreadAllocatedBytes();
+        }
+
+        /**
+         * Sets the number of rows the stage handled, for the rows per second
+         */
+        public void setRows(long rows) {
+            event.rows = rows;
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - startNanos;
+            event.allocatedBytes = THREADS.getCurrentThreadAllocatedBytes() - startAllocated;
+            event.rowsPerSecond = nanos == 0 ? 0 : event.rows / (nanos / 1e9);
+            event.commit();
+
+            if (reportEnabled) {
+                addReport(stagesReport, String.format(Locale.ROOT,
+                        "{\"stage\": \"%s\", \"wall_ms\": %.3f, \"allocated_bytes\": %d, \"rows\": %d, \"rows_per_second\": %.1f}",
+                        event.stage, nanos / 1e6, event.allocatedBytes, event.rows, event.rowsPerSecond));
+            }
+        }
+    }
+
+    public static Stage startStage(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * Starts timing the search for the best split of a leaf (see LeafNode.getBestIG)
+     */
+    public static SplitEvent startSplit(int leafSize) {
+        SplitEvent event = new SplitEvent();
+        event.leafSize = leafSize;
+        event.begin();
+        event.startNanos = System.nanoTime();
+        return event;
+    }
+
+    public static void endSplit(SplitEvent event, int questionsScored, double bestIG, int question) {
+        long nanos = System.nanoTime() - event.startNanos;
+        event.questionsScored = questionsScored;
+        event.bestIG = bestIG;
+        event.question = question;
+        event.commit();
+
+        if (reportEnabled) {
+            addReport(splitsReport, String.format(Locale.ROOT,
+                    "{\"leaf_size\": %d, \"questions_scored\": %d, \"best_ig\": %f, \"question\": %d, \"time_us\": %.1f}",
+                    event.leafSize, questionsScored, bestIG, question, nanos / 1e3));
+        }
+    }
+
+    private static synchronized void addReport(List<String> report, String entry) {
+        report.add(entry);
+    }
+
+    /**
+     * Writes the json report, if it's enabled (see REPORT_PROPERTY)
+     */
+    public static synchronized void writeReport() throws IOException {
+        if (!reportEnabled) {
+            return;
+        }
+
+        try (Writer out = new FileWriter(System.getProperty(REPORT_PROPERTY))) {
+            out.write("{\"stages\": [\n  ");
+            out.write(String.join(",\n  ", stagesReport));
+            out.write("\n], \"splits\": [\n  ");
+            out.write(String.join(",\n  ", splitsReport));
+            out.write("\n]}\n");
+        }
+    }
+}
+
+@Name("digits.Stage")
+@Label("Stage")
+@Category("Digits")
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Rows Per Second")
+    double rowsPerSecond;
+
+    @Label("Allocated Bytes (calling thread)")
+    long allocatedBytes;
+}
+
+@Name("digits.Split")
+@Label("Split Search")
+@Category("Digits")
+class SplitEvent extends Event {
+    @Label("Leaf Size")
+    int leafSize;
+
+    @Label("Questions Scored")
+    int questionsScored;
+
+    @Label("Best IG")
+    double bestIG;
+
+    @Label("Question")
+    int question;
+
+    transient long startNanos;
+}
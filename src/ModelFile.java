@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ModelFile {
+    private static final int MAGIC = 0x44545245;  // "DTRE"
+    private static final short FORMAT_VERSION = 1;
+
+    /**
+     * The trees are made for mnist's 28x28 images. The file doesn't record the image size,
+     * so the ver2 config and the question ids are checked against it
+     */
+    private static final int IMAGE_DIM = 28;
+
+    /**
+     * The ver2 config keys, in the order they are written
+     */
+    private static final String[] CONFIG_KEYS = {
+            Questions.ROWS_NUM, Questions.ROWS_LEVELS,
+            Questions.COLS_NUM, Questions.COLS_LEVELS,
+            Questions.BLOCKS_NUM_SQR, Questions.BLOCKS_LEVELS
+    };
+
+    /**
+     * Thrown when a file isn't a valid model file
+     */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FormatException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Saves the tree in the model format, which is (all big-endian):
+     *   int magic, short format version, int T, byte version (1/2),
+     *   byte hasConfig, followed by the ver2 config values (in CONFIG_KEYS order) if it's 1,
+     *   int internal nodes count, int leafs count, int root reference,
+     *   for every internal node: int question, int left reference, int right reference,
+     *   for every leaf: byte digit.
+     * The node table is the one of the FlatTree (see there for the references encoding)
+     */
+    public static void write(DecisionTree tree, String file_path) throws IOException {
+        FlatTree flatTree = tree.getFlatTree();
+        Map<String, Integer> config = tree.getVer2Config();
+        int internalCount = flatTree.getInternalCount();
+        int leafCount = flatTree.getLeafCount();
+
+        int size = 4 + 2 + 4 + 1 + 1 + (config == null ? 0 : 4 * CONFIG_KEYS.length)
+                + 4 + 4 + 4 + 12 * internalCount + leafCount;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.putInt(tree.getT());
+        buffer.put((byte) tree.getVersion());
+        buffer.put((byte) (config == null ? 0 : 1));
+        if (config != null) {
+            for (String key : CONFIG_KEYS) {
+                buffer.putInt(config.get(key));
+            }
+        }
+
+        buffer.putInt(internalCount);
+        buffer.putInt(leafCount);
+        buffer.putInt(flatTree.getRoot());
+        for(int node=0; node<internalCount; node++) {
+            buffer.putInt(flatTree.getQuestion(node));
+            buffer.putInt(flatTree.getLeft(node));
+            buffer.putInt(flatTree.getRight(node));
+        }
+        for(int leaf=0; leaf<leafCount; leaf++) {
+            buffer.put((byte) flatTree.getLeafDigit(-leaf - 1));
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file_path), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Loads a tree saved by write(), by memory mapping the file.
+     * Everything is validated, so a corrupt file can't produce a tree that loops or reads out of bounds
+     * (of an image of mnist's size)
+     */
+    public static DecisionTree read(String file_path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(file_path), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            return read(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new FormatException("Model file is truncated");
+        }
+    }
+
+    private static DecisionTree read(ByteBuffer buffer) throws FormatException {
+        if (buffer.getInt() != MAGIC) {
+            throw new FormatException("Not a model file");
+        }
+        short formatVersion = buffer.getShort();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new FormatException("Unsupported model format version " + formatVersion);
+        }
+
+        int T = buffer.getInt();
+        int version = buffer.get();
+        if (version != 1 && version != 2) {
+            throw new FormatException("Bad tree version " + version);
+        }
+
+        Map<String, Integer> config = null;
+        if (buffer.get() != 0) {
+            config = new HashMap<>();
+            for (String key : CONFIG_KEYS) {
+                config.put(key, buffer.getInt());
+            }
+            checkConfig(config);
+        }
+        if (version == 2 && config == null) {
+            throw new FormatException("A version 2 tree without a questions config");
+        }
+        long answerColumns = getAnswerColumns(version, config);
+
+        int internalCount = buffer.getInt();
+        int leafCount = buffer.getInt();
+        if (internalCount < 0 || leafCount < 1 || internalCount + 1 < leafCount
+                || buffer.remaining() < 4 + 12L * internalCount + leafCount) {
+            throw new FormatException("Bad node counts");
+        }
+
+        int root = buffer.getInt();
+        checkReference(root, internalCount, leafCount);
+
+        int[] questions = new int[internalCount];
+        int[] left = new int[internalCount];
+        int[] right = new int[internalCount];
+        for(int node=0; node<internalCount; node++) {
+            questions[node] = buffer.getInt();
+            if (questions[node] < 1 || answerColumns <= questions[node]) {
+                throw new FormatException("Bad question " + questions[node]);
+            }
+            left[node] = checkReference(buffer.getInt(), internalCount, leafCount);
+            right[node] = checkReference(buffer.getInt(), internalCount, leafCount);
+        }
+        checkAcyclic(left, right, root);
+
+        int[] leafDigits = new int[leafCount];
+        for(int leaf=0; leaf<leafCount; leaf++) {
+            leafDigits[leaf] = buffer.get();
+            if (leafDigits[leaf] < 0 || 9 < leafDigits[leaf]) {
+                throw new FormatException("Bad digit " + leafDigits[leaf]);
+            }
+        }
+
+        FlatTree flatTree = new FlatTree(questions, left, right, leafDigits, root);
+        return new DecisionTree(flatTree, T, version, config);
+    }
+
+    /**
+     * Checks the ver2 config the same way the questions are made (see Questions.convertToAnswersMatrixVer2):
+     * the rows/cols/blocks have to divide the image, and there has to be at least one level of each
+     */
+    private static void checkConfig(Map<String, Integer> config) throws FormatException {
+        for (String key : CONFIG_KEYS) {
+            int value = config.get(key);
+            boolean isNum = key.endsWith("_NUM") || key.equals(Questions.BLOCKS_NUM_SQR);
+            if (isNum ? value < 1 || IMAGE_DIM < value || IMAGE_DIM % value != 0 : value < 1) {
+                throw new FormatException("Bad config value " + key + "=" + value);
+            }
+        }
+    }
+
+    /**
+     * The number of columns of the answers matrix the tree's questions are about (including the label)
+     */
+    private static long getAnswerColumns(int version, Map<String, Integer> config) {
+        if (version == 1) {
+            return 1 + IMAGE_DIM * IMAGE_DIM;
+        }
+        long blocks = (long) config.get(Questions.BLOCKS_NUM_SQR) * config.get(Questions.BLOCKS_NUM_SQR);
+        return 1 + (long) config.get(Questions.ROWS_NUM) * config.get(Questions.ROWS_LEVELS)
+                + (long) config.get(Questions.COLS_NUM) * config.get(Questions.COLS_LEVELS)
+                + blocks * config.get(Questions.BLOCKS_LEVELS);
+    }
+
+    private static int checkReference(int ref, int internalCount, int leafCount) throws FormatException {
+        if (ref >= 0 ? internalCount <= ref : ref < -leafCount) {
+            throw new FormatException("Bad node reference " + ref);
+        }
+        return ref;
+    }
+
+    /**
+     * Makes sure the nodes reachable from the root have no cycles, so prediction always reaches a leaf.
+     * Nodes may be shared (see TreeCompactor), so a node being reached twice is fine,
+     * only reaching a node that is still on the current path isn't.
+     * The search is iterative, since a corrupt file may be arbitrarily deep.
+     */
+    private static void checkAcyclic(int[] left, int[] right, int root) throws FormatException {
+        final byte onPath = 1;
+        final byte done = 2;
+        byte[] state = new byte[left.length];
+        int[] stack = new int[left.length];
+        int[] visitedChildren = new int[left.length];
+        int depth = 0;
+
+        if (root >= 0) {
+            stack[depth++] = root;
+            state[root] = onPath;
+        }
+        while (depth > 0) {
+            int node = stack[depth - 1];
+            if (visitedChildren[node] == 2) {
+                state[node] = done;
+                depth--;
+                continue;
+            }
+
+            int child = visitedChildren[node]++ == 0 ? left[node] : right[node];
+            if (child >= 0) {
+                if (state[child] == onPath) {
+                    throw new FormatException("The nodes have a cycle");
+                }
+                if (state[child] == 0) {
+                    state[child] = onPath;
+                    stack[depth++] = child;
+                }
+            }
+        }
+    }
+}
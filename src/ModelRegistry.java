@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ModelRegistry implements Closeable {
+    private final Path dir;
+    private final int maxModels;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Model> models;  // in access order, so the first one is the least recently used
+    private long totalBytes;
+
+    // counts the changes of every model file that the watcher saw, so a load that raced with a change is detected.
+    // Lost events (an overflow) count as a change of every file
+    private final Map<String, Long> generations;
+    private long overflows;
+
+    private final WatchService watcher;
+    private final Thread watchThread;
+
+    private static class Model {
+        final DecisionTree tree;
+        final long bytes;
+
+        Model(DecisionTree tree, long bytes) {
+            this.tree = tree;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A registry of the models (saved by ModelFile) in a directory, by their file names.
+     * Models are loaded on demand, and kept in an LRU cache, which is bounded both by the number
+     * of models and by their total size (the size of their files, which is proportional to their size in memory).
+     * The directory is watched, and when a cached model's file changes it is reloaded and swapped in.
+     * Trees are never changed after loading, so predictions already running on the old one just finish on it.
+     * Model files should be replaced by a rename, so a half-written file is never seen
+     * (if it is, loading fails, and the old model is kept until the next change).
+     */
+    public ModelRegistry(String dir, int maxModels, long maxBytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.maxModels = maxModels;
+        this.maxBytes = maxBytes;
+        models = new LinkedHashMap<>(16, 0.75f, true);
+        totalBytes = 0;
+        generations = new HashMap<>();
+        overflows = 0;
+
+        watcher = FileSystems.getDefault().newWatchService();
+        this.dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchThread = new Thread(this::runWatcher, "model-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Returns the model saved in the given file of the directory, loading it if it's not cached
+     * @throws FileNotFoundException if there is no such model
+     * @throws ModelFile.FormatException if the file isn't a valid model
+     */
+    public DecisionTree get(String name) throws IOException {
+        while (true) {
+            long generation;
+            synchronized (this) {
+                Model model = models.get(name);
+                if (model != null) {
+                    return model.tree;
+                }
+                generation = getGeneration(name);
+            }
+
+            // loading is done without the lock, so other models can be served meanwhile
+            Model loaded = load(name);
+            synchronized (this) {
+                Model model = models.get(name);
+                if (model != null) {  // another thread loaded it first
+                    return model.tree;
+                }
+                // if the file changed during the load, the watcher skipped it (it wasn't cached yet),
+                // so the loaded tree may be the old one - load it again rather than cache it
+                if (getGeneration(name) == generation) {
+                    put(name, loaded);
+                    return loaded.tree;
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return models.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private Model load(String name) throws IOException {
+        Path path = dir.resolve(name);
+        // only plain file names are allowed, so models can't be loaded from outside the directory
+        if (!path.getParent().equals(dir) || !Files.isRegularFile(path)) {
+            throw new FileNotFoundException("No model " + name);
+        }
+
+        long bytes = Files.size(path);
+        try {
+            return new Model(ModelFile.read(path.toString()), bytes);
+        } catch (RuntimeException | InternalError e) {
+            // the file is memory mapped, so if it's truncated while it's read (ModelFile.write truncates in place)
+            // the reads fail with an InternalError, or with whatever a half-written file leads to
+            throw new IOException("Error loading model " + name + ": " + e, e);
+        }
+    }
+
+    /**
+     * Adds (or replaces) a model, then evicts the least recently used models until it's within the bounds.
+     * The newest model is always kept, even if it's bigger than maxBytes on its own.
+     */
+    private synchronized void put(String name, Model model) {
+        remove(name);
+        models.put(name, model);
+        totalBytes += model.bytes;
+
+        Iterator<Map.Entry<String, Model>> eldest = models.entrySet().iterator();
+        while (models.size() > 1 && (models.size() > maxModels || totalBytes > maxBytes)) {
+            totalBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Model old = models.remove(name);
+        if (old != null) {
+            totalBytes -= old.bytes;
+        }
+    }
+
+    private synchronized long getGeneration(String name) {
+        return overflows + generations.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Records that the model's file changed, and returns whether the model is cached
+     */
+    private synchronized boolean changed(String name) {
+        generations.merge(name, 1L, Long::sum);
+        return models.containsKey(name);
+    }
+
+    /**
+     * Reloads a cached model after its file changed. If the new file can't be loaded, the old model is kept.
+     */
+    private void reload(String name) {
+        if (!changed(name)) {
+            return;  // not loaded - it will be loaded fresh when it's asked for
+        }
+
+        try {
+            put(name, load(name));
+        } catch (IOException e) {
+            System.err.println("Error reloading model " + name + ", keeping the old one: " + e.getMessage());
+        }
+    }
+
+    private void runWatcher() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // some events were lost, so reload everything that's cached
+                        List<String> names;
+                        synchronized (this) {
+                            overflows++;
+                            names = new ArrayList<>(models.keySet());
+                        }
+                        names.forEach(this::reload);
+                        continue;
+                    }
+
+                    String name = event.context().toString();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        changed(name);
+                        remove(name);
+                    } else {
+                        reload(name);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the registry was closed
+        }
+    }
+}
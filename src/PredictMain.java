@@ -1,49 +1,186 @@
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class PredictMain {
+    /**
+     * Max number of test files predicted at the same time. Each one holds a batch of rows in memory
+     */
+    private static final int MAX_FILES_IN_FLIGHT = Runtime.getRuntime().availableProcessors();
 
     private static void exit(String msg) {
         System.err.println(msg);
         System.exit(1);
     }
 
+    private static void writeMetricsReport() {
+        try {
+            Metrics.writeReport();
+        } catch (IOException e) {
+            exit("Error writing the metrics report");
+        }
+    }
+
+    /**
+     * Returns the given test set files, with directories replaced by the files in them (sorted by name)
+     */
+    private static List<Path> listTestSets(List<String> names) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String name : names) {
+            Path path = Paths.get(name);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> dirFiles = Files.list(path)) {
+                    files.addAll(dirFiles.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Predicts a single test set file into the given output file
+     * @return a line reporting the time it took
+     */
+    private static String predictFile(DecisionTree t, Path testSet, Path output) throws IOException {
+        long start = System.nanoTime();
+        long rows;
+        try (BufferedReader reader = Files.newBufferedReader(testSet);
+             Writer out = TreePredictor.makeOutputWriter(Files.newOutputStream(output))) {
+            rows = TreePredictor.runStreamingPrediction(t, reader, out);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        return testSet + ": " + rows + " rows in " + millis + " ms";
+    }
+
+    /**
+     * Predicts many test set files concurrently, at most MAX_FILES_IN_FLIGHT at a time.
+     * If outputDir is given, the predictions of every file go to "<outputDir>/<file name>.predictions",
+     * and otherwise they are all written to stdout, in the order of the files
+     * (every file is predicted to a temporary file, which is copied once all the files before it are done).
+     * @return whether all the files were predicted successfully
+     */
+    private static boolean predictFiles(DecisionTree t, List<Path> testSets, Path outputDir) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_FILES_IN_FLIGHT, testSets.size()));
+        List<Path> outputs = new ArrayList<>();
+        List<Future<String>> results = new ArrayList<>();
+        for (Path testSet : testSets) {
+            Path output;
+            try {
+                output = outputDir != null
+                        ? outputDir.resolve(testSet.getFileName() + ".predictions")
+                        : Files.createTempFile("predictions", ".txt");
+            } catch (IOException e) {
+                exit("Error creating a temporary file");
+                return false;
+            }
+            outputs.add(output);
+            results.add(pool.submit(() -> predictFile(t, testSet, output)));
+        }
+        pool.shutdown();
+
+        boolean success = true;
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        for (int i=0; i<testSets.size(); i++) {
+            try {
+                System.err.println(results.get(i).get());
+                if (outputDir == null) {
+                    Files.copy(outputs.get(i), stdout);
+                }
+            } catch (ExecutionException | IOException e) {
+                System.err.println("Error predicting file " + testSets.get(i));
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                if (outputDir == null) {
+                    outputs.get(i).toFile().delete();
+                }
+            }
+        }
+        return success;
+    }
+
     public static void main(String[] args) {
+        Path outputDir = null;
+        if (args.length >= 2 && args[0].equals("-o")) {
+            outputDir = Paths.get(args[1]);
+            if (!Files.isDirectory(outputDir)) {
+                exit("Output directory " + args[1] + " doesn't exist");
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
         if (args.length < 2) {
-            exit("Usage: predict <tree_filename> <testset_filename>");
+            exit("Usage: predict [-o <output_dir>] <tree_filename> <testset_filename/dir>...");
         }
 
         String treeFileName = args[0];
-        String testSetFileName = args[1];
+        List<String> testSetNames = Arrays.asList(args).subList(1, args.length);
 
         DecisionTree t = null;
+        Metrics.Stage loadStage = Metrics.startStage("load_model");  // not a try resource, since it has no rows to set
         try {
-            ObjectInputStream treeObjStream = new ObjectInputStream(new FileInputStream(treeFileName));
-            Object obj = treeObjStream.readObject();
-            if (obj instanceof DecisionTree) {
-                t = (DecisionTree) obj;
-            } else {
-                throw new ClassNotFoundException("");
-            }
+            t = ModelFile.read(treeFileName);
+        } catch (ModelFile.FormatException e) {
+            exit("Error reading file " + treeFileName + ": " + e.getMessage());
         } catch (IOException e) {
             exit("Error opening file " + treeFileName);
-        } catch (ClassNotFoundException e) {
-            exit("Error reading file " + treeFileName);
+        } finally {
+            loadStage.close();
         }
 
-        int[][] images_matrix = Images.parse_csv(testSetFileName);
-        if (images_matrix == null) {
-            exit("Error opening file " + testSetFileName);
+        // a single test set is just streamed to stdout
+        if (testSetNames.size() == 1 && outputDir == null && !Files.isDirectory(Paths.get(testSetNames.get(0)))) {
+            String testSetFileName = testSetNames.get(0);
+            try (BufferedReader reader = new BufferedReader(new FileReader(testSetFileName))) {
+                TreePredictor.runStreamingPrediction(t, reader);
+            } catch (IOException e) {
+                exit("Error opening file " + testSetFileName);
+            }
+            writeMetricsReport();
+            return;
         }
 
-        int[][] answers_matrix;
-        if (t.getVersion() == 1) {
-            answers_matrix = Questions.convertToAnswersMatrixVer1(images_matrix);
-        } else {
-            answers_matrix = Questions.convertToAnswersMatrixVer2(images_matrix, Questions.BEST_CONFIG);
+        List<Path> testSets = null;
+        try {
+            testSets = listTestSets(testSetNames);
+        } catch (IOException e) {
+            exit("Error listing the test sets");
+        }
+        if (testSets.isEmpty()) {
+            exit("No test sets found");
+        }
+        if (outputDir != null) {
+            // the outputs are named by the test sets' file names, so files of the same name would overwrite each other
+            Map<Path, Path> byFileName = new HashMap<>();
+            for (Path testSet : testSets) {
+                Path other = byFileName.putIfAbsent(testSet.getFileName(), testSet);
+                if (other != null) {
+                    exit("Test sets " + other + " and " + testSet + " have the same file name, "
+                            + "so their predictions can't both be written to " + outputDir);
+                }
+            }
         }
 
-        TreePredictor.runPrediction(t, answers_matrix);
+        boolean success = predictFiles(t, testSets, outputDir);
+        writeMetricsReport();
+        if (!success) {
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,369 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PredictServer implements Closeable {
+    private static final int DEFAULT_MAX_BATCH = 256;
+    private static final int CHUNK_SIZE = 16;  // requests of a batch that are classified together, by one thread
+    private static final long DEFAULT_MAX_DELAY_MICROS = 500;
+    private static final int LATENCY_SAMPLES = 10000;
+    private static final int REGISTRY_MAX_MODELS = 64;
+    private static final long REGISTRY_MAX_BYTES = 256L << 20;
+    private static final int VER1_COLUMNS = 1 + 28 * 28;  // ver1 questions are about the pixels of a mnist image
+
+    private final DecisionTree tree;
+    private final ModelRegistry registry;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+
+    private final BlockingQueue<Request> queue;
+    private final ExecutorService connections;
+    private final Thread batcher;
+    private final ExecutorService workers;
+    // every model has its own questions configuration. Weak keys, so models evicted from the registry are freed
+    private final ThreadLocal<Map<DecisionTree, LazyAnswers>> modelsAnswers;
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    // stats
+    private final AtomicLong served;
+    private final long startNanos;
+    private final long[] latencies;  // ring buffer of the latest request latencies, in nanoseconds
+    private long latenciesCount;
+
+    private static class Request {
+        final DecisionTree tree;
+        final int[] image;
+        final long startNanos;
+        final CompletableFuture<Integer> prediction;
+
+        Request(DecisionTree tree, int[] image) {
+            this.tree = tree;
+            this.image = image;
+            startNanos = System.nanoTime();
+            prediction = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * A prediction server, which keeps the tree loaded and answers requests over a local TCP socket.
+     * The protocol is line based: a request is a csv line of a raw image - in the test set format
+     * (the label first, with any value) or just the pixels - and the response is the predicted digit.
+     * A "STATS" line is answered with the throughput and latency counters.
+     * When serving from a registry, a request is prefixed by the model name and a colon ("name:pixels").
+     *
+     * Concurrent requests are coalesced into micro-batches by a single batcher thread. A batch takes whatever
+     * requests are queued, and is closed as soon as the queue is empty - so a lone request is never held back,
+     * and under load batches grow by themselves, since requests queue up while the previous batch is handed out.
+     * A batch is also closed when it has maxBatch requests, or has kept collecting for maxDelayMicros.
+     * Its requests are classified in chunks of CHUNK_SIZE, by the batcher and a pool of a worker per core.
+     */
+    public PredictServer(DecisionTree tree, int maxBatch, long maxDelayMicros) {
+        this(tree, null, maxBatch, maxDelayMicros);
+    }
+
+    public PredictServer(ModelRegistry registry, int maxBatch, long maxDelayMicros) {
+        this(null, registry, maxBatch, maxDelayMicros);
+    }
+
+    private PredictServer(DecisionTree tree, ModelRegistry registry, int maxBatch, long maxDelayMicros) {
+        this.tree = tree;
+        this.registry = registry;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        queue = new LinkedBlockingQueue<>();
+        connections = Executors.newCachedThreadPool();
+        batcher = new Thread(this::runBatcher, "predict-batcher");
+        batcher.setDaemon(true);
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread worker = new Thread(runnable, "predict-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+        modelsAnswers = ThreadLocal.withInitial(WeakHashMap::new);
+
+        served = new AtomicLong();
+        startNanos = System.nanoTime();
+        latencies = new long[LATENCY_SAMPLES];
+        latenciesCount = 0;
+    }
+
+    /**
+     * Starts listening on localhost
+     * @param port - the port, or 0 for any free one
+     * @return the port the server listens on
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        running = true;
+        batcher.start();
+
+        Thread acceptor = new Thread(this::runAcceptor, "predict-acceptor");  // keeps the JVM alive until close()
+        acceptor.start();
+
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        batcher.interrupt();
+        workers.shutdownNow();
+        connections.shutdownNow();
+        if (registry != null) {
+            registry.close();
+        }
+    }
+
+    private void runAcceptor() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException | RejectedExecutionException e) {
+                // the server socket was closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
+
+            String line = in.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (line.equals("STATS")) {
+                    out.write(getStats());
+                } else if (!line.isEmpty()) {
+                    out.write(respond(line));
+                }
+                out.write('\n');
+
+                // only flush when the client has nothing more in flight, so pipelined requests share a write
+                if (!in.ready()) {
+                    out.flush();
+                }
+                line = in.readLine();
+            }
+        } catch (IOException e) {
+            // the client disconnected
+        }
+    }
+
+    private String respond(String line) {
+        DecisionTree model = tree;
+        if (registry != null) {
+            int separator = line.indexOf(':');
+            if (separator < 0) {
+                return "ERROR missing model name";
+            }
+            try {
+                model = registry.get(line.substring(0, separator));
+            } catch (IOException e) {
+                return "ERROR " + e.getMessage();
+            }
+            line = line.substring(separator + 1);
+        }
+
+        int[] image;
+        try {
+            image = Images.parse_csv_line(line, null);
+        } catch (NumberFormatException e) {
+            return "ERROR bad image";
+        }
+
+        // add a label if only the pixels were sent
+        int dim = (int) Math.sqrt(image.length);
+        if (dim * dim == image.length) {
+            int[] labeled = new int[image.length + 1];
+            System.arraycopy(image, 0, labeled, 1, image.length);
+            image = labeled;
+        }
+        if (!isImageOf(model, image.length)) {
+            return "ERROR bad image size";
+        }
+
+        Request request = new Request(model, image);
+        queue.add(request);
+        try {
+            return String.valueOf(request.prediction.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR server stopped";
+        } catch (ExecutionException e) {
+            return "ERROR " + e.getCause();
+        }
+    }
+
+    /**
+     * Returns whether a row of the given number of columns (with the label) is an image the model can classify:
+     * a mnist image for ver1, and a square image that the ver2 config's rows, columns and blocks divide for ver2
+     * (see Questions.convertToAnswersMatrixVer2)
+     */
+    private static boolean isImageOf(DecisionTree model, int columns) {
+        if (model.getVersion() == 1) {
+            return columns == VER1_COLUMNS;
+        }
+
+        int dim = (int) Math.sqrt(columns - 1);
+        if (dim * dim != columns - 1) {
+            return false;
+        }
+        for (String key : new String[] {Questions.ROWS_NUM, Questions.COLS_NUM, Questions.BLOCKS_NUM_SQR}) {
+            int num = model.getVer2Config().get(key);
+            if (num > dim || dim % num != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runBatcher() {
+        try {
+            while (running) {
+                List<Request> batch = new ArrayList<>();
+                batch.add(queue.take());
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch && queue.drainTo(batch, maxBatch - batch.size()) > 0
+                        && System.nanoTime() < deadline) {
+                    // keep collecting while more requests arrive
+                }
+
+                for(int start=CHUNK_SIZE; start<batch.size(); start+=CHUNK_SIZE) {
+                    List<Request> chunk = batch.subList(start, Math.min(start + CHUNK_SIZE, batch.size()));
+                    workers.execute(() -> classify(chunk));
+                }
+                classify(batch.subList(0, Math.min(CHUNK_SIZE, batch.size())));  // the first chunk isn't handed off
+            }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // the server was closed
+        }
+    }
+
+    /**
+     * Classifies the requests of a chunk. The images were already checked to fit their models (see respond),
+     * so an exception is a failure of that request alone. An Error isn't caught, but the requests it
+     * left unanswered are still failed, so their clients aren't left waiting
+     */
+    private void classify(List<Request> chunk) {
+        Map<DecisionTree, LazyAnswers> answersByModel = modelsAnswers.get();
+        try {
+            for (Request request : chunk) {
+                try {
+                    LazyAnswers answers = answersByModel.computeIfAbsent(request.tree,
+                            t -> new LazyAnswers(t.getVersion(), t.getVer2Config()));
+                    answers.setImage(request.image);
+                    request.prediction.complete(request.tree.getClassifier().predict(answers));
+                } catch (RuntimeException e) {
+                    request.prediction.completeExceptionally(e);
+                }
+            }
+        } finally {
+            for (Request request : chunk) {
+                if (!request.prediction.isDone()) {
+                    request.prediction.completeExceptionally(new IllegalStateException("server error"));
+                }
+            }
+        }
+        recordLatencies(chunk);
+    }
+
+    private synchronized void recordLatencies(List<Request> batch) {
+        long now = System.nanoTime();
+        for (Request request : batch) {
+            latencies[(int) (latenciesCount++ % LATENCY_SAMPLES)] = now - request.startNanos;
+        }
+        served.addAndGet(batch.size());
+    }
+
+    /**
+     * Returns the number of requests served, the throughput since the start,
+     * and the p50/p99 latencies of the latest LATENCY_SAMPLES requests
+     */
+    public synchronized String getStats() {
+        int samples = (int) Math.min(latenciesCount, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long p50 = samples == 0 ? 0 : sorted[(samples - 1) / 2];
+        long p99 = samples == 0 ? 0 : sorted[(int) ((samples - 1) * 0.99)];
+        return String.format(Locale.ROOT, "served=%d throughput=%.1f/s p50=%dus p99=%dus",
+                served.get(), served.get() / seconds, p50 / 1000, p99 / 1000);
+    }
+
+    private static void exit(String msg) {
+        System.err.println(msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            exit("Usage: predictserver <tree_filename/models_dir> <port> [max_batch] [max_delay_micros]");
+        }
+
+        String treeFileName = args[0];
+        int port = -1;
+        int maxBatch = DEFAULT_MAX_BATCH;
+        long maxDelayMicros = DEFAULT_MAX_DELAY_MICROS;
+        try {
+            port = Integer.parseInt(args[1]);
+            if (args.length > 2) {
+                maxBatch = Integer.parseInt(args[2]);
+            }
+            if (args.length > 3) {
+                maxDelayMicros = Long.parseLong(args[3]);
+            }
+            if (port < 0 || maxBatch <= 0 || maxDelayMicros < 0) {
+                throw new NumberFormatException("");
+            }
+        } catch (NumberFormatException e) {
+            exit("port, max_batch and max_delay_micros should be non-negative integers");
+        }
+
+        PredictServer server = null;
+        if (Files.isDirectory(Paths.get(treeFileName))) {
+            try {
+                server = new PredictServer(new ModelRegistry(treeFileName, REGISTRY_MAX_MODELS, REGISTRY_MAX_BYTES),
+                        maxBatch, maxDelayMicros);
+            } catch (IOException e) {
+                exit("Error watching directory " + treeFileName);
+            }
+        } else {
+            DecisionTree t = null;
+            try {
+                t = ModelFile.read(treeFileName);
+            } catch (ModelFile.FormatException e) {
+                exit("Error reading file " + treeFileName + ": " + e.getMessage());
+            } catch (IOException e) {
+                exit("Error opening file " + treeFileName);
+            }
+            server = new PredictServer(t, maxBatch, maxDelayMicros);
+        }
+
+        try {
+            port = server.start(port);
+        } catch (IOException e) {
+            exit("Error listening on port " + port);
+        }
+        System.err.println("Listening on localhost:" + port);
+    }
+}
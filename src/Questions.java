@@ -1,8 +1,10 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.*;
 
 public class Questions {
-    private static final int MAX_BYTE_VAL = 255;
+    static final int MAX_BYTE_VAL = 255;
+    static final int CONVERSION_CHUNK_SIZE = 1024;  // rows converted together to the byte form
     public static final String ROWS_NUM = "ROWS_NUM";
     public static final String COLS_NUM = "COLS_NUM";
     public static final String BLOCKS_NUM_SQR = "BLOCKS_NUM_SQR";
@@ -10,14 +12,18 @@ public class Questions {
     public static final String COLS_LEVELS = "COLS_LEVELS";
     public static final String BLOCKS_LEVELS = "BLOCKS_LEVELS";
 
-    public static Map<String, Integer> BEST_CONFIG = new HashMap<String, Integer>() {{
+    /**
+     * The default configuration for training ver2 trees.
+     * Prediction always uses the configuration saved with the tree (DecisionTree.getVer2Config)
+     */
+    public static final Map<String, Integer> BEST_CONFIG = Collections.unmodifiableMap(new HashMap<String, Integer>() {{
         put(Questions.ROWS_NUM, 14);
         put(Questions.ROWS_LEVELS, 15);
         put(Questions.COLS_NUM, 14);
         put(Questions.COLS_LEVELS, 15);
         put(Questions.BLOCKS_NUM_SQR, 28);
         put(Questions.BLOCKS_LEVELS, 1);
-    }};
+    }});
 
 
     /**
@@ -206,6 +212,58 @@ public class Questions {
         return data;
 
     }
-}
 
+    private static int[][] convertToAnswersMatrix(int[][] data, int version, Map<String, Integer> config) {
+        return version == 1 ? convertToAnswersMatrixVer1(data) : convertToAnswersMatrixVer2(data, config);
+    }
+
+    /**
+     * Converts the the given raw data to answers, like convertToAnswersMatrixVer1/2, but with a byte for each answer.
+     * That's the form the trees are trained on, since it's a quarter of the size.
+     * It converts a chunk of rows at a time, and drops the raw rows as it goes (sets them to null),
+     * so only a chunk is ever held in both forms
+     * @param config - the ver2 questions configuration (ignored for ver1)
+     */
+    public static byte[][] convertToByteAnswersMatrix(int[][] data, int version, Map<String, Integer> config) {
+        byte[][] result = new byte[data.length][];
+        for(int start=0; start<data.length; start+=CONVERSION_CHUNK_SIZE) {
+            int end = Math.min(start + CONVERSION_CHUNK_SIZE, data.length);
+            int[][] chunk = convertToAnswersMatrix(Arrays.copyOfRange(data, start, end), version, config);
+            for(int im=start; im<end; im++) {
+                result[im] = toBytes(chunk[im - start]);
+                data[im] = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a csv file of raw images (in mnist standard format) straight into the byte answers
+     * (see convertToByteAnswersMatrix), so the raw images are never all held in memory at once
+     */
+    public static byte[][] readByteAnswersMatrix(BufferedReader reader, int version, Map<String, Integer> config)
+            throws IOException {
+        List<byte[]> rows = new ArrayList<>();
+        int[][] batch = new int[CONVERSION_CHUNK_SIZE][];
+
+        int count = Images.parse_csv_batch(reader, batch);
+        while (count > 0) {
+            // converting a copy of the batch, since ver2 replaces its rows - and the batch's are reused
+            int[][] chunk = convertToAnswersMatrix(Arrays.copyOf(batch, count), version, config);
+            for(int im=0; im<count; im++) {
+                rows.add(toBytes(chunk[im]));
+            }
+            count = Images.parse_csv_batch(reader, batch);
+        }
+
+        return rows.toArray(new byte[rows.size()][]);
+    }
 
+    private static byte[] toBytes(int[] answers) {
+        byte[] bytes = new byte[answers.length];
+        for(int i=0; i<answers.length; i++) {
+            bytes[i] = (byte) answers[i];  // a label (0-9) or an answer (0/1)
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,13 @@
+public interface TreeClassifier {
+    /**
+     * Returns the predicted digit for a single row of an answers matrix
+     * (column 0 is the label, and is ignored)
+     */
+    int predict(int[] answers);
+
+    /**
+     * Returns the predicted digit for the current image of the lazy answers,
+     * asking only the questions along its path
+     */
+    int predict(LazyAnswers answers);
+}
@@ -0,0 +1,97 @@
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class TreeCompactor {
+    private final Map<String, Node> canonicalNodes;  // by their structure key, see compact(Node)
+    private final Map<Node, Integer> ids;  // of the canonical nodes
+
+    private TreeCompactor() {
+        canonicalNodes = new HashMap<>();
+        ids = new IdentityHashMap<>();
+    }
+
+    /**
+     * Compacts a (prediction-only) tree without changing any of its predictions:
+     * - An internal node whose two children are the same (e.g. two leafs with the same digit,
+     *   which the algorithm often makes, or the split of a pure leaf) is replaced by that child,
+     *   so a subtree whose leafs all predict the same digit becomes a single leaf.
+     * - Identical subtrees are merged into one shared node.
+     * @param answers_matrix - the dataset the average path length is measured on
+     * @return a report of how much the node count and the average path length went down
+     */
+    public static String compact(DecisionTree tree, byte[][] answers_matrix) {
+        int nodesBefore = countNodes(tree.getRoot(), new IdentityHashMap<>());
+        double depthBefore = getAveragePathLength(tree.getRoot(), answers_matrix);
+
+        tree.setRoot(new TreeCompactor().compact(tree.getRoot()));
+
+        int nodesAfter = countNodes(tree.getRoot(), new IdentityHashMap<>());
+        double depthAfter = getAveragePathLength(tree.getRoot(), answers_matrix);
+        return String.format("nodes: %d -> %d%navg path length: %.2f -> %.2f",
+                nodesBefore, nodesAfter, depthBefore, depthAfter);
+    }
+
+    /**
+     * Returns the compacted, canonical version of the given subtree.
+     * Nodes are canonical bottom-up, so two subtrees are identical exactly when their roots have the same
+     * question and the very same (canonical) children
+     */
+    private Node compact(Node node) {
+        if (node instanceof LeafNode) {
+            int digit = ((LeafNode) node).getDigit();
+            return canonical("L" + digit, () -> new LeafNode(digit));
+        }
+
+        InternalNode internal = (InternalNode) node;
+        Node left = compact(internal.getLeft());
+        Node right = compact(internal.getRight());
+        if (left == right) {
+            return left;  // the question doesn't matter
+        }
+
+        String key = "I" + internal.getQuestion() + ":" + ids.get(left) + ":" + ids.get(right);
+        return canonical(key, () -> new InternalNode(internal.getQuestion(), left, right));
+    }
+
+    private Node canonical(String key, Supplier<Node> maker) {
+        Node node = canonicalNodes.get(key);
+        if (node == null) {
+            node = maker.get();
+            canonicalNodes.put(key, node);
+            ids.put(node, ids.size());
+        }
+        return node;
+    }
+
+    /**
+     * Counts the distinct nodes (shared nodes are counted once)
+     */
+    private static int countNodes(Node node, Map<Node, Boolean> seen) {
+        if (seen.put(node, true) != null) {
+            return 0;
+        }
+        if (node instanceof LeafNode) {
+            return 1;
+        }
+        InternalNode internal = (InternalNode) node;
+        return 1 + countNodes(internal.getLeft(), seen) + countNodes(internal.getRight(), seen);
+    }
+
+    /**
+     * Returns the average number of questions asked to predict the images of the dataset
+     */
+    private static double getAveragePathLength(Node root, byte[][] answers_matrix) {
+        long hops = 0;
+        for(int im=0; im<answers_matrix.length; im++) {
+            Node curNode = root;
+            while(!(curNode instanceof LeafNode)) {
+                InternalNode curInternal = (InternalNode) curNode;
+                curNode = answers_matrix[im][curInternal.getQuestion()] == 0 ? curInternal.getLeft() : curInternal.getRight();
+                hops++;
+            }
+        }
+        return answers_matrix.length == 0 ? 0 : hops / (double) answers_matrix.length;
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TreeCompiler {
+    /**
+     * Methods bigger than this (in bytes of bytecode) are never JIT-compiled by HotSpot
+     * (see -XX:-DontCompileHugeMethods), so for such trees the generated class would just be
+     * interpreted, and the FlatTree is faster.
+     */
+    private static final int MAX_CODE_SIZE = 8000;
+
+    private static final String CLASS_NAME = "CompiledTreeClassifier";
+
+    // constant pool indexes, see writeClass
+    private static final int CP_THIS_CLASS = 2;
+    private static final int CP_SUPER_CLASS = 4;
+    private static final int CP_INTERFACE = 6;
+    private static final int CP_INIT_NAME = 7;
+    private static final int CP_INIT_DESC = 8;
+    private static final int CP_SUPER_INIT = 10;
+    private static final int CP_PREDICT_NAME = 11;
+    private static final int CP_PREDICT_DESC = 12;
+    private static final int CP_CODE = 13;
+    private static final int CP_STACK_MAP_TABLE = 14;
+    private static final int CP_LAZY_ANSWERS_CLASS = 16;
+    private static final int CP_ANSWER = 20;
+    private static final int CP_PREDICT_LAZY_DESC = 21;
+    private static final int CP_COUNT = 22;
+
+    // opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IALOAD = 0x2e;
+    private static final int IFEQ = 0x99;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    /**
+     * Returns a classifier for the given tree.
+     * For small enough trees, the tree is turned into straight-line nested if/else bytecode over the
+     * answers array (and the same over LazyAnswers), which is defined as a hidden class,
+     * so the JIT can inline the whole tree.
+     * Larger trees fall back to the FlatTree, and so do runtimes that don't let us define the class.
+     * A class that doesn't verify is a bug in the generated bytecode, so it's thrown and not hidden by the fallback
+     * (bench/ClassifierCheck checks the compiled trees against the FlatTree).
+     */
+    public static TreeClassifier compile(DecisionTree tree) {
+        FlatTree flatTree = tree.getFlatTree();
+
+        int maxCodeSize = getMaxCodeSize(flatTree);
+        if (maxCodeSize > MAX_CODE_SIZE) {
+            return flatTree;
+        }
+        for(int node=0; node<flatTree.getInternalCount(); node++) {
+            if (flatTree.getQuestion(node) > Short.MAX_VALUE) {
+                return flatTree;  // sipush can't hold the question id
+            }
+        }
+
+        try {
+            TreeCompiler arrayCompiler = new TreeCompiler(flatTree, maxCodeSize, false);
+            arrayCompiler.writeNode(flatTree.getRoot());
+            TreeCompiler lazyCompiler = new TreeCompiler(flatTree, maxCodeSize, true);
+            lazyCompiler.writeNode(flatTree.getRoot());
+            byte[] classBytes = writeClass(arrayCompiler, lazyCompiler);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return (TreeClassifier) lookup.lookupClass().getConstructor().newInstance();
+        } catch (VerifyError | ClassFormatError e) {
+            throw new IllegalStateException("Generated an invalid class for the tree", e);
+        } catch (LinkageError | ReflectiveOperationException e) {
+            return flatTree;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // can't happen, the class is written to memory
+        }
+    }
+
+    /**
+     * Returns an upper bound of the size of the code of the tree: every internal node takes
+     * at most 10 bytes (aload, sipush, invokevirtual or iaload, ifeq) and every leaf 3 (bipush, ireturn).
+     * Shared nodes are written once for every path to them, so they are counted that many times
+     * (capped above MAX_CODE_SIZE, so it can't overflow).
+     * The sizes are computed bottom-up with an explicit stack, since a loaded tree may be arbitrarily deep
+     */
+    private static int getMaxCodeSize(FlatTree flatTree) {
+        int root = flatTree.getRoot();
+        if (root < 0) {
+            return 3;
+        }
+
+        int[] sizes = new int[flatTree.getInternalCount()];  // 0 until computed
+        int[] stack = new int[2 * sizes.length + 1];  // every node pushes its children once, when it's first on top
+        int depth = 0;
+        stack[depth++] = root;
+        while (depth > 0) {
+            int node = stack[depth - 1];
+            if (sizes[node] != 0) {  // a shared node that was pushed again before it was computed
+                depth--;
+                continue;
+            }
+
+            int left = flatTree.getLeft(node);
+            int right = flatTree.getRight(node);
+            boolean leftDone = left < 0 || sizes[left] != 0;
+            boolean rightDone = right < 0 || sizes[right] != 0;
+            if (leftDone && rightDone) {
+                int size = 10 + (left < 0 ? 3 : sizes[left]) + (right < 0 ? 3 : sizes[right]);
+                sizes[node] = Math.min(size, MAX_CODE_SIZE + 1);
+                depth--;
+                continue;
+            }
+            if (!leftDone) {
+                stack[depth++] = left;
+            }
+            if (!rightDone && right != left) {
+                stack[depth++] = right;
+            }
+        }
+        return sizes[root];
+    }
+
+    private final FlatTree flatTree;
+    private final boolean lazy;  // whether it's the code of predict(LazyAnswers), or of predict(int[])
+    private final byte[] code;
+    private int codeSize;
+    private final List<Integer> frames;
+
+    private TreeCompiler(FlatTree flatTree, int maxCodeSize, boolean lazy) {
+        this.flatTree = flatTree;
+        this.lazy = lazy;
+        code = new byte[maxCodeSize];
+        codeSize = 0;
+        frames = new ArrayList<>();
+    }
+
+    private void write(int b) {
+        code[codeSize++] = (byte) b;
+    }
+
+    /**
+     * Emits the body of predict() for the subtree of the given node reference.
+     * The right (true) branch falls through, and the left (false) one is jumped to by ifeq.
+     * The offsets of all the jump targets are collected to frames, for the StackMapTable
+     */
+    private void writeNode(int node) {
+        if (node < 0) {
+            writeConstant(flatTree.getLeafDigit(node));
+            write(IRETURN);
+            return;
+        }
+
+        write(ALOAD_1);
+        writeConstant(flatTree.getQuestion(node));
+        if (lazy) {
+            write(INVOKEVIRTUAL);  // answers.answer(question)
+            write(CP_ANSWER >> 8);
+            write(CP_ANSWER);
+        } else {
+            write(IALOAD);
+        }
+        int jumpOffset = codeSize;
+        write(IFEQ);
+        codeSize += 2;  // the jump offset, set below
+
+        writeNode(flatTree.getRight(node));
+
+        int leftOffset = codeSize;
+        frames.add(leftOffset);
+        int jump = leftOffset - jumpOffset;
+        code[jumpOffset + 1] = (byte) (jump >> 8);
+        code[jumpOffset + 2] = (byte) jump;
+
+        writeNode(flatTree.getLeft(node));
+    }
+
+    private void writeConstant(int value) {
+        if (value >= 0 && value <= 5) {
+            write(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            write(BIPUSH);
+            write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            write(SIPUSH);
+            write(value >> 8);
+            write(value);
+        } else {
+            throw new IllegalArgumentException("Constant too big for sipush: " + value);
+        }
+    }
+
+    /**
+     * Every jump target has the same frame as the method entry (this, int[] or LazyAnswers) with an empty stack,
+     * so all entries are "same_frame"s
+     */
+    private byte[] makeStackMapTable() throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(table);
+        frames.sort(null);
+
+        out.writeShort(frames.size());
+        int previous = -1;
+        for (int offset : frames) {
+            int delta = offset - previous - 1;
+            if (delta < 64) {
+                out.writeByte(delta);  // same_frame
+            } else {
+                out.writeByte(251);  // same_frame_extended
+                out.writeShort(delta);
+            }
+            previous = offset;
+        }
+        return table.toByteArray();
+    }
+
+    /**
+     * Writes a class file of a final class implementing TreeClassifier, with a default constructor
+     * and the two predict() methods, which hold the whole tree (already written by writeNode)
+     */
+    private static byte[] writeClass(TreeCompiler arrayCompiler, TreeCompiler lazyCompiler) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);  // minor version
+        out.writeShort(52);  // major version - Java 8, the first to require a StackMapTable
+
+        out.writeShort(CP_COUNT);
+        writeUtf8(out, CLASS_NAME);  // 1
+        writeClassRef(out, 1);  // 2
+        writeUtf8(out, "java/lang/Object");  // 3
+        writeClassRef(out, 3);  // 4
+        writeUtf8(out, TreeClassifier.class.getName().replace('.', '/'));  // 5
+        writeClassRef(out, 5);  // 6
+        writeUtf8(out, "<init>");  // 7
+        writeUtf8(out, "()V");  // 8
+        out.writeByte(12);  // 9 - NameAndType
+        out.writeShort(CP_INIT_NAME);
+        out.writeShort(CP_INIT_DESC);
+        out.writeByte(10);  // 10 - Methodref
+        out.writeShort(CP_SUPER_CLASS);
+        out.writeShort(9);
+        writeUtf8(out, "predict");  // 11
+        writeUtf8(out, "([I)I");  // 12
+        writeUtf8(out, "Code");  // 13
+        writeUtf8(out, "StackMapTable");  // 14
+        writeUtf8(out, LazyAnswers.class.getName().replace('.', '/'));  // 15
+        writeClassRef(out, 15);  // 16
+        writeUtf8(out, "answer");  // 17
+        writeUtf8(out, "(I)I");  // 18
+        out.writeByte(12);  // 19 - NameAndType
+        out.writeShort(17);
+        out.writeShort(18);
+        out.writeByte(10);  // 20 - Methodref
+        out.writeShort(CP_LAZY_ANSWERS_CLASS);
+        out.writeShort(19);
+        writeUtf8(out, "(L" + LazyAnswers.class.getName().replace('.', '/') + ";)I");  // 21
+
+        out.writeShort(0x0031);  // public final super
+        out.writeShort(CP_THIS_CLASS);
+        out.writeShort(CP_SUPER_CLASS);
+        out.writeShort(1);  // interfaces
+        out.writeShort(CP_INTERFACE);
+        out.writeShort(0);  // fields
+
+        out.writeShort(3);  // methods
+        byte[] initCode = new byte[] {
+                (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, (byte) CP_SUPER_INIT, (byte) RETURN
+        };
+        writeMethod(out, CP_INIT_NAME, CP_INIT_DESC, 1, 1, initCode, null);
+        arrayCompiler.writePredictMethod(out, CP_PREDICT_DESC);
+        lazyCompiler.writePredictMethod(out, CP_PREDICT_LAZY_DESC);
+
+        out.writeShort(0);  // class attributes
+        return bytes.toByteArray();
+    }
+
+    private void writePredictMethod(DataOutputStream out, int descriptor) throws IOException {
+        writeMethod(out, CP_PREDICT_NAME, descriptor, 2, 2, Arrays.copyOf(code, codeSize),
+                frames.isEmpty() ? null : makeStackMapTable());
+    }
+
+    private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(value);
+    }
+
+    private static void writeClassRef(DataOutputStream out, int nameIndex) throws IOException {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int maxStack, int maxLocals,
+                                    byte[] code, byte[] stackMapTable) throws IOException {
+        out.writeShort(0x0001);  // public
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);  // attributes - only Code
+
+        int codeAttributeLength = 2 + 2 + 4 + code.length + 2 + 2;
+        if (stackMapTable != null) {
+            codeAttributeLength += 2 + 4 + stackMapTable.length;
+        }
+
+        out.writeShort(CP_CODE);
+        out.writeInt(codeAttributeLength);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);  // exception table
+        if (stackMapTable == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(1);
+            out.writeShort(CP_STACK_MAP_TABLE);
+            out.writeInt(stackMapTable.length);
+            out.write(stackMapTable);
+        }
+    }
+}
@@ -1,6 +1,4 @@
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 
 public class TreeMaker {
@@ -11,20 +9,36 @@ public class TreeMaker {
         return (n & (n - 1)) == 0;
     }
 
+    /**
+     * Randomly splits the indexes 0..indexes-1 to a validation set of P of them, and a training set of the rest.
+     * Both are sorted. It shuffles a plain int array (Fisher-Yates), so there's no boxing of the indexes
+     */
     public static int[][] splitValidationSet(int indexes, double P) {
-        List<Integer> allIndexes = IntStream.rangeClosed(0, indexes - 1).boxed().collect(Collectors.toList());
-        Collections.shuffle(allIndexes);
+        int[] allIndexes = new int[indexes];
+        for(int i=0; i<indexes; i++) {
+            allIndexes[i] = i;
+        }
+        Random random = new Random();
+        for(int i=indexes-1; i>0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = allIndexes[i];
+            allIndexes[i] = allIndexes[j];
+            allIndexes[j] = tmp;
+        }
 
         int validationLength = (int) (P * (double) indexes);
-        List<Integer> validation = allIndexes.subList(0, validationLength);
-        List<Integer> training = allIndexes.subList(validationLength, indexes);
-
-        Collections.sort(validation);
-        Collections.sort(training);
+        boolean[] isValidation = new boolean[indexes];
+        for(int i=0; i<validationLength; i++) {
+            isValidation[allIndexes[i]] = true;
+        }
 
-        int[][] sets = new int[2][];
-        sets[0] = validation.stream().mapToInt(i->i).toArray();
-        sets[1] = training.stream().mapToInt(i->i).toArray();
+        // collecting them in order is what sorts them
+        int[][] sets = new int[][] {new int[validationLength], new int[indexes - validationLength]};
+        int[] counters = new int[2];
+        for(int i=0; i<indexes; i++) {
+            int set = isValidation[i] ? 0 : 1;
+            sets[set][counters[set]++] = i;
+        }
 
         return sets;
     }
@@ -32,8 +46,8 @@ public class TreeMaker {
     /**
      * Get a subset of the given matrix, based on a list of indexes
      */
-    private static int[][] fromIndexes(int[][] matrix, int[] indexes) {
-        int[][] result = new int[indexes.length][];
+    private static byte[][] fromIndexes(byte[][] matrix, int[] indexes) {
+        byte[][] result = new byte[indexes.length][];
 
         for(int im=0; im<indexes.length; im++) {
             result[im] = matrix[indexes[im]];
@@ -46,11 +60,13 @@ public class TreeMaker {
      * Run the tree building algorithm
      * @param buildTree: an initialized DecisionTree object
      * @param version: 1/2
+     * @param ver2Config: the ver2 questions configuration, saved with the trees (null for ver1)
      * @param singleTree: whether to return just the last tree (with max(T))
      * @return a list of trees with increasing sizes, one for every T value,
      * which were produced during the algorithm run
      */
-    private static List<DecisionTree> runAlgorithm(DecisionTree buildTree, int L, int version, boolean singleTree) {
+    static List<DecisionTree> runAlgorithm(DecisionTree buildTree, int L, int version,
+                                           Map<String, Integer> ver2Config, boolean singleTree) {
         int maxT = (int) Math.pow(2, L);
         List<DecisionTree> trees = new ArrayList<>(singleTree ? 1 : L+1);  // list of potential trees (or just the one)
         List<IGStruct> leafsIGs = new ArrayList<>(maxT);  // a list of all the leafs in the tree with their max IGS
@@ -81,24 +97,38 @@ public class TreeMaker {
 
             // copy the tree if it's a proper T value (power of 2)
             if (isPowerOf2(i) && !singleTree) {
-                trees.add(new DecisionTree(buildTree, i, version));
+                trees.add(new DecisionTree(buildTree, i, version, ver2Config));
             }
         }
 
         if (singleTree) {
-            trees.add(new DecisionTree(buildTree, maxT, version));
+            trees.add(new DecisionTree(buildTree, maxT, version, ver2Config));
         }
 
         return trees;
     }
 
 
+    /**
+     * Makes a tree out of raw images. The images matrix is consumed by the conversion to answers
+     */
     public static DecisionTree makeTree(int version, double P, int L, int[][] images_matrix, Map<String, Integer> ver2Config) {
-        int[][] answers_matrix;
-        if(version == 1){
-            answers_matrix = Questions.convertToAnswersMatrixVer1(images_matrix);
-        } else {
-            answers_matrix = Questions.convertToAnswersMatrixVer2(images_matrix, ver2Config);
+        byte[][] answers_matrix;
+        try (Metrics.Stage stage = Metrics.startStage("featurize")) {
+            stage.setRows(images_matrix.length);
+            answers_matrix = Questions.convertToByteAnswersMatrix(images_matrix, version, ver2Config);
+        }
+        return makeTreeFromAnswers(version, P, L, answers_matrix, ver2Config);
+    }
+
+    /**
+     * Makes a tree out of an answers matrix, in its byte form (see Questions.convertToByteAnswersMatrix)
+     * @param ver2Config - the configuration the answers were made with (ignored for ver1)
+     */
+    public static DecisionTree makeTreeFromAnswers(int version, double P, int L, byte[][] answers_matrix,
+                                                   Map<String, Integer> ver2Config) {
+        if (version == 1) {
+            ver2Config = null;
         }
 
         int[][] indexes = splitValidationSet(answers_matrix.length, P);
@@ -106,34 +136,52 @@ public class TreeMaker {
         int[] trainingIndexes = indexes[1];
 
         // run the algorithm the first time - to generate a tree for every T value
-        DecisionTree validationTree = new DecisionTree(answers_matrix, trainingIndexes);
-        List<DecisionTree> trees = runAlgorithm(validationTree, L, version, false);
+        List<DecisionTree> trees;
+        try (Metrics.Stage stage = Metrics.startStage("validation_training")) {
+            stage.setRows(trainingIndexes.length);
+            DecisionTree validationTree = new DecisionTree(answers_matrix, trainingIndexes);
+            trees = runAlgorithm(validationTree, L, version, ver2Config, false);
+        }
 
 
         // choose the tree with the best success rate using the validation set on the generated trees
-        int[][] validationSet = fromIndexes(answers_matrix, validationIndexes);
+        byte[][] validationSet = fromIndexes(answers_matrix, validationIndexes);
         double bestRate = -1;
         DecisionTree bestTree = null;
-        for(DecisionTree t: trees) {
-            double curRate = TreePredictor.getSuccessRate(t, validationSet);
-
-            if(bestRate < curRate) {
-                bestRate = curRate;
-                bestTree = t;
+        try (Metrics.Stage stage = Metrics.startStage("validation_scoring")) {
+            stage.setRows((long) validationSet.length * trees.size());
+            for(DecisionTree t: trees) {
+                double curRate = TreePredictor.getSuccessRate(t, validationSet);
+
+                if(bestRate < curRate) {
+                    bestRate = curRate;
+                    bestTree = t;
+                }
             }
         }
         validationSet = null;  // free up some memory
+        trees = null;
 
         // running algorithm on both the validation and training set with the best sized tree
         int[] allIndexes = splitValidationSet(answers_matrix.length, 0)[1];
         DecisionTree finalTree = new DecisionTree(answers_matrix, allIndexes);
-        finalTree = runAlgorithm(finalTree, L, version, true).get(0);  // only one tree in the list
+        try (Metrics.Stage stage = Metrics.startStage("final_training")) {
+            stage.setRows(allIndexes.length);
+            finalTree = runAlgorithm(finalTree, L, version, ver2Config, true).get(0);  // only one tree in the list
+        }
+
+        String compactionReport;
+        try (Metrics.Stage stage = Metrics.startStage("compaction")) {
+            stage.setRows(answers_matrix.length);
+            compactionReport = TreeCompactor.compact(finalTree, answers_matrix);
+        }
 
 
         int error = (int) ((1.0 - bestRate) * 100);
         System.out.println("num: " + String.valueOf(answers_matrix.length));
         System.out.println("error: " + String.valueOf(error));
         System.out.println("size: " + finalTree.getT());
+        System.err.println(compactionReport);  // stdout is just the stats above, as it always was
         return finalTree;
     }
 }
\ No newline at end of file
@@ -1,7 +1,15 @@
+import java.io.*;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 
 public class TreePredictor {
+    /**
+     * Number of rows that are read, converted and classified together when streaming
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
     /**
      * Returns predictions by the tree of the data matrix
      * @param tree a decision tree built for the set of questions C0
@@ -9,20 +17,11 @@ public class TreePredictor {
      * @return an array of predictions
      */
 
-    private static int[] makePredictionsArray(DecisionTree tree, int[][] answers_matrix) {
+    static int[] makePredictionsArray(DecisionTree tree, int[][] answers_matrix) {
+        TreeClassifier classifier = tree.getClassifier();
         int[] predictions = new int[answers_matrix.length];
         for(int im=0; im<answers_matrix.length; im++) {
-            Node curNode = tree.getRoot();
-            while(!(curNode instanceof LeafNode)) {
-                InternalNode curInternal = (InternalNode) curNode;
-                if(answers_matrix[im][curInternal.getQuestion()] == 0) {
-                    curNode = curInternal.getLeft();
-                } else {
-                    curNode = curInternal.getRight();
-                }
-            }
-
-            predictions[im] = ((LeafNode) curNode).getDigit();
+            predictions[im] = classifier.predict(answers_matrix[im]);
         }
 
         return predictions;
@@ -32,66 +31,100 @@ public class TreePredictor {
      * Returns the success percentage (as a fracture) of the given tree on a dataset
      */
     public static double getSuccessRate(DecisionTree tree, int[][] answers_matrix) {
-        int[] predictions = makePredictionsArray(tree, answers_matrix);
-        double success = 0;
+        return Evaluation.evaluate(tree, answers_matrix).getAccuracy();
+    }
+
+    public static double getSuccessRate(DecisionTree tree, byte[][] answers_matrix) {
+        return Evaluation.evaluate(tree, answers_matrix).getAccuracy();
+    }
 
-        for(int im=0; im<answers_matrix.length; im++) {
-            int digit = answers_matrix[im][0];
-            if (predictions[im] == digit) {
-                success++;
-            }
-        }
 
-        success = success / (double) predictions.length;
-        return success;
+    /**
+     * Returns a writer with a large buffer, which (for stdout) also avoids PrintStream's locking
+     * and flushing on every line. It has to be flushed when done.
+     */
+    public static Writer makeOutputWriter(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(out), OUTPUT_BUFFER_SIZE);
     }
 
+    private static Writer makeOutputWriter() {
+        return makeOutputWriter(new FileOutputStream(FileDescriptor.out));
+    }
 
-    public static void runPrediction(DecisionTree tree, int[][] images_matrix) {
-        int[] predictions = makePredictionsArray(tree, images_matrix);
-        for(int i=0; i<predictions.length; i++) {
-            System.out.println(predictions[i]);
+    private static void writePredictions(Writer out, int[] predictions, int count) throws IOException {
+        String newLine = System.lineSeparator();
+        for(int i=0; i<count; i++) {
+            out.write('0' + predictions[i]);
+            out.write(newLine);
         }
     }
 
-
-    public static double getConfusionMatrix(DecisionTree tree, int[][] images_matrix) {
+    public static void runPrediction(DecisionTree tree, int[][] images_matrix) throws IOException {
         int[] predictions = makePredictionsArray(tree, images_matrix);
+        Writer out = makeOutputWriter();
+        writePredictions(out, predictions, predictions.length);
+        out.flush();
+    }
 
-        double[] instances = new double[10];
-        double[][] confusion_matrix = new double[10][10];
-
-        for(int i=0; i<images_matrix.length; i++) {
-            int actualDigit = images_matrix[i][0];
+    /**
+     * Predicts a csv file of raw images (in mnist standard format) batch by batch,
+     * so memory use doesn't depend on the size of the file. The rows buffers are reused between batches.
+     * Images aren't converted to answers, instead the questions along each image's path are evaluated
+     * lazily from its pixels (see LazyAnswers).
+     * @param out - where the predictions are written, one per line. It is flushed, but not closed
+     * @return the number of predicted rows
+     */
+    public static long runStreamingPrediction(DecisionTree tree, BufferedReader reader, Writer out) throws IOException {
+        TreeClassifier classifier = tree.getClassifier();
+        LazyAnswers answers = new LazyAnswers(tree.getVersion(), tree.getVer2Config());
+        int[][] rows = new int[BATCH_SIZE][];
+        int[] predictions = new int[BATCH_SIZE];
+        long total = 0;
+
+        try (Metrics.Stage stage = Metrics.startStage("predict")) {
+            int count = Images.parse_csv_batch(reader, rows);
+            while (count > 0) {
+                for(int im=0; im<count; im++) {
+                    answers.setImage(rows[im]);
+                    predictions[im] = classifier.predict(answers);
+                }
+                writePredictions(out, predictions, count);
+                total += count;
+                stage.setRows(total);
 
-            // count instances of digits in the dataset
-            instances[actualDigit]++;
+                count = Images.parse_csv_batch(reader, rows);
+            }
 
-            // count for each digit its prediction
-            confusion_matrix[actualDigit][predictions[i]]++;
+            out.flush();
         }
+        return total;
+    }
 
+    /**
+     * Streams predictions of a single file to stdout
+     */
+    public static void runStreamingPrediction(DecisionTree tree, BufferedReader reader) throws IOException {
+        runStreamingPrediction(tree, reader, makeOutputWriter());
+    }
+
+
+    public static double getConfusionMatrix(DecisionTree tree, int[][] images_matrix) {
+        Evaluation evaluation = Evaluation.evaluate(tree, images_matrix);
 
         DecimalFormat df = new DecimalFormat("#.###");
         df.setRoundingMode(RoundingMode.CEILING);
         for(int i=0; i<10; i++) {
+            double instances = evaluation.getSupport(i);
             for(int j=0; j<10; j++) {
-                confusion_matrix[i][j] /= instances[i];
-                System.out.print(df.format(confusion_matrix[i][j]));
+                System.out.print(df.format(evaluation.getCount(i, j) / instances));
                 System.out.print("\t");
             }
             System.out.println();
 
         }
 
-
-
-
         System.out.println();
-        System.out.println(1.0 - getSuccessRate(tree, images_matrix));
-        return getSuccessRate(tree, images_matrix);
+        System.out.println(1.0 - evaluation.getAccuracy());
+        return evaluation.getAccuracy();
     }
-
-
-
 }